@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the identity+ API benchmarks and writes the results as JSON, so that they can be compared
+ * between versions (for example with jmh.morethan.io or a simple diff script).
+ * 
+ * The benchmarks live in the "bench" source folder and need jmh-core and jmh-generator-annprocess (with its
+ * annotation processor enabled) on the class path, next to the libraries of the API itself.
+ * 
+ * Usage: Benchmarks [result file, default benchmark-results.json] [benchmark name regex, default all]
+ */
+public class Benchmarks {
+    public static void main(String[] args) throws RunnerException {
+        String result_file = args.length > 0 ? args[0] : "benchmark-results.json";
+        String include = args.length > 1 ? args[1] : Benchmarks.class.getPackage().getName() + ".*";
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result_file);
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import identity.plus.api.API_Channel;
+import identity.plus.api.communication.API_Response;
+
+/**
+ * API_Channel.decode_response for the response types the channel can receive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Decode_Benchmark {
+    @Param({"Identity_Profile", "Simple_Response", "Anonymous_ID", "Intent_Reference", "Service_Identity", "Recovery_Code"})
+    public String type;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException{
+        data = Samples.object_for(Samples.communication_class(type)).to_json().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public API_Response decode_response(){
+        return API_Channel.decode_response(data);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.bench;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import identity.plus.api.API_Channel;
+import identity.plus.api.Object_Of_Intrusion;
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Identity_Inquiry;
+import identity.plus.api.communication.Intrusion_Report;
+import identity.plus.api.tools.API_Stub_Server;
+import identity.plus.api.tools.Loopback_Credentials;
+
+/**
+ * Full round trips through API_Channel against the in-process mTLS stub on the loopback interface:
+ * serialization, TLS, HTTP and response decoding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Dispatch_Benchmark {
+    private API_Stub_Server stub;
+    private API_Channel channel;
+    private Identity_Inquiry inquiry;
+    private Intrusion_Report report;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, GeneralSecurityException{
+        stub = new API_Stub_Server(Loopback_Credentials.generate(), 8);
+        channel = stub.credentials.open_channel(stub.endpoint());
+        inquiry = new Identity_Inquiry("583106061337360220", null, "127.0.0.1");
+        report = new Intrusion_Report("583106061337360220", Object_Of_Intrusion.policy_violation, "benchmark", "127.0.0.1", "/login", null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tear_down(){
+        stub.stop();
+    }
+
+    @Benchmark
+    public API_Response get_identity_inquiry() throws IOException{
+        return channel.get(inquiry);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public API_Response get_identity_inquiry_concurrent() throws IOException{
+        return channel.get(inquiry);
+    }
+
+    @Benchmark
+    public API_Response put_intrusion_report() throws IOException{
+        return channel.put(report);
+    }
+
+    @Benchmark
+    public API_Response ping() throws IOException{
+        return channel.ping();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import identity.plus.api.util.Memory_Ephemeral_KV_Storage;
+
+/**
+ * Memory_Ephemeral_KV_Storage.find under contention, a mix of existing and new session ids
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class KV_Storage_Benchmark {
+    /**
+     * The number of distinct session ids, the larger, the more often find creates a new storage
+     */
+    @Param({"1000", "100000"})
+    public int sessions;
+
+    private String[] ids;
+
+    @Setup
+    public void setup(){
+        ids = new String[sessions];
+        for(int i = 0; i < sessions; i++) ids[i] = "session-" + i;
+    }
+
+    @Benchmark
+    public Memory_Ephemeral_KV_Storage find(){
+        return Memory_Ephemeral_KV_Storage.find(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.bench;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import identity.plus.api.communication.API_Object;
+
+/**
+ * Builds representative payloads for the communication classes, every public field gets a plausible value
+ */
+public class Samples {
+    /**
+     * The communication classes that can be restored from JSON
+     */
+    public static final String[] COMMUNICATION_CLASSES = {"Anonymous_ID", "Autoprovisioning_Token", "Certificate_Renewal", "Device_Authorization_Request", "Identity_Inquiry", "Identity_Profile", "Identity_Revocation_Request", "Intent", "Intent_Reference", "Intrusion_Reference", "Intrusion_Report", "Local_User_Information", "Local_User_Reference", "Message_Delivery_Request", "Message_Delivery_Response", "Personal_Data_Disclosure_Request", "Recovery_Code", "Redirect_Request", "Reference_Number", "Service_Agent_Identity", "Service_Agent_Identity_Request", "Service_Identity", "Service_Identity_Request", "Simple_Response", "Trust", "Unlock_Request", "User_Secret", "X509_Identity"};
+
+    public static Class<? extends API_Object> communication_class(String simple_name) throws ClassNotFoundException{
+        return Class.forName("identity.plus.api.communication." + simple_name).asSubclass(API_Object.class);
+    }
+
+    /**
+     * @param type
+     * @return the JSON body (without the envelope) of a sample object of the given type
+     */
+    public static JsonObject json_for(Class<? extends API_Object> type){
+        Random random = new Random(type.getName().hashCode());
+        JsonObjectBuilder b = Json.createObjectBuilder();
+
+        for(Field f : type.getFields()){
+            if(Modifier.isStatic(f.getModifiers()) || f.getName().equals("custom_fields")) continue;
+
+            String name = f.getName().replace('_', '-');
+            Class<?> t = f.getType();
+
+            if(t == String.class) b.add(name, "sample " + f.getName() + " " + random.nextInt(1000000));
+            else if(t == BigInteger.class) b.add(name, BigInteger.valueOf(1 + random.nextInt(100000)));
+            else if(t == BigDecimal.class) b.add(name, BigDecimal.valueOf(random.nextInt(10000), 2));
+            else if(t == Boolean.class) b.add(name, "true");
+            else if(t == Date.class) b.add(name, System.currentTimeMillis());
+            else if(t == byte[].class){
+                byte[] data = new byte[2048];
+                random.nextBytes(data);
+                b.add(name, Base64.getEncoder().encodeToString(data));
+            }
+            else if(List.class.isAssignableFrom(t)){
+                JsonArrayBuilder a = Json.createArrayBuilder();
+                for(int i = 0; i < 8; i++) a.add("item-" + i + "-" + random.nextInt(1000000));
+                b.add(name, a);
+            }
+            else if(t.isEnum()) b.add(name, ((Enum<?>)t.getEnumConstants()[0]).name().replace('_', ' '));
+        }
+
+        return b.build();
+    }
+
+    /**
+     * @param type
+     * @return a sample object of the given type
+     * @throws ReflectiveOperationException
+     */
+    public static API_Object object_for(Class<? extends API_Object> type) throws ReflectiveOperationException{
+        return type.getConstructor(JsonObject.class).newInstance(json_for(type));
+    }
+}
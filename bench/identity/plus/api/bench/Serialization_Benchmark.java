@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.bench;
+
+import java.io.StringReader;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import identity.plus.api.Identity_Plus_Utils;
+import identity.plus.api.communication.API_Object;
+
+/**
+ * API_Object.to_json and restore_object (via the JsonObject constructors) for each communication class
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Serialization_Benchmark {
+    @Param({"Anonymous_ID", "Autoprovisioning_Token", "Certificate_Renewal", "Device_Authorization_Request", "Identity_Inquiry", "Identity_Profile", "Identity_Revocation_Request", "Intent", "Intent_Reference", "Intrusion_Reference", "Intrusion_Report", "Local_User_Information", "Local_User_Reference", "Message_Delivery_Request", "Message_Delivery_Response", "Personal_Data_Disclosure_Request", "Recovery_Code", "Redirect_Request", "Reference_Number", "Service_Agent_Identity", "Service_Agent_Identity_Request", "Service_Identity", "Service_Identity_Request", "Simple_Response", "Trust", "Unlock_Request", "User_Secret", "X509_Identity"})
+    public String type;
+
+    private API_Object object;
+    private String json;
+    private String json_name;
+    private Constructor<? extends API_Object> constructor;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException{
+        Class<? extends API_Object> c = Samples.communication_class(type);
+        constructor = c.getConstructor(JsonObject.class);
+        object = Samples.object_for(c);
+        json = object.to_json();
+        json_name = Identity_Plus_Utils.json_name(c);
+    }
+
+    @Benchmark
+    public String to_json(){
+        return object.to_json();
+    }
+
+    @Benchmark
+    public API_Object restore_object() throws ReflectiveOperationException{
+        try(JsonReader reader = Json.createReader(new StringReader(json))){
+            return constructor.newInstance(reader.readObject().getJsonObject(json_name));
+        }
+    }
+}
@@ -33,22 +33,45 @@
 package identity.plus.api;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -70,6 +93,7 @@ import identity.plus.api.communication.Local_User_Information;
 import identity.plus.api.communication.Local_User_Reference;
 import identity.plus.api.communication.Message_Delivery_Request;
 import identity.plus.api.communication.Message_Delivery_Response;
+import identity.plus.api.communication.Outcome;
 import identity.plus.api.communication.Personal_Data_Disclosure_Request;
 import identity.plus.api.communication.Recovery_Code;
 import identity.plus.api.communication.Redirect_Request;
@@ -82,17 +106,33 @@ import identity.plus.api.communication.Simple_Response;
 import identity.plus.api.communication.Trust;
 import identity.plus.api.communication.Unlock_Request;
 import identity.plus.api.communication.User_Secret;
+import identity.plus.api.metrics.Error_Category;
+import identity.plus.api.metrics.Metrics_Exporter;
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.resilience.Bulkhead;
+import identity.plus.api.resilience.Circuit_Breaker;
+import identity.plus.api.resilience.Circuit_Breaker_Policy;
+import identity.plus.api.resilience.Concurrency_Limiter;
+import identity.plus.api.resilience.Deadline;
+import identity.plus.api.resilience.Endpoint;
+import identity.plus.api.resilience.Endpoint_Balancer;
+import identity.plus.api.resilience.Hedging_Policy;
+import identity.plus.api.resilience.Rejected_Call_Exception;
+import identity.plus.api.resilience.Retry_Policy;
+import identity.plus.api.util.Call_Handle;
 import identity.plus.api.util.HTTPS_Utils;
+import identity.plus.api.util.Log;
 
 /**
  * Singleton Class responsible with conveying information from and to the server via the identity+ http api
  * This class should be instantiated once and used at each request. The Apache HTTP Client performs some 
  * connection caching so this may help with performance.
  * 
- * Methods are synchronized because they re-use the http_connection which should not be called simultaneously by 
- * more than one thread.
+ * The channel is thread safe, each call is made on its own connection (kept alive and re-used by the JDK when possible)
+ * and only the TLS context is shared, it is replaced as a whole when the credentials are rotated, so the methods can be called concurrently.
  * 
- * For heavy load sites, you could create more than one of these objects and pool them.
+ * Many identity inquiries can be made in one go with the batch get methods, which fan them out over a number of
+ * parallel connections.
  *
  * @author Stefan Harsan Farr
  */
@@ -105,24 +145,125 @@ public class API_Channel {
     public static final String REGISTER_RESPONSE_PARAMETER = "identity-plus-register-intent";
     
     /**
-     * Where to make the requests. The identity+ ReST API url 
+     * Where to make the requests. The identity+ ReST API url. If the channel balances over several endpoints 
+     * (see set_endpoints), this is the default one, from which the sign-on urls are derived
      */
     public final String endpoint;
     
     /**
-     * The private key of the API client certificate 
+     * Runs the key store watches and triggers the certificate renewals of all channels. It must not block on the network, 
+     * the renewals themselves run on RENEWALS
      */
-    public final PrivateKey private_key;
+    private static final ScheduledExecutorService CREDENTIAL_TASKS = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "identity-plus-credentials");
+            t.setDaemon(true);
+            return t;
+    });
     
     /**
-     * the API client certificate
+     * Makes the renewal calls, so that a slow renewal of one channel does not hold up the others, idle threads go away after a minute
      */
-    public final X509Certificate certificate;
+    private static final ExecutorService RENEWALS = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread t = new Thread(r, "identity-plus-renewal");
+            t.setDaemon(true);
+            return t;
+    });
+    
+    /**
+     * Opens channels and warms them up in the background, idle threads go away after a minute
+     */
+    private static final ExecutorService STARTUP = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread t = new Thread(r, "identity-plus-startup");
+            t.setDaemon(true);
+            return t;
+    });
+    
+    /**
+     * The API client certificate, its private key and the TLS context, replaced as a whole when the credentials are rotated
+     */
+    private volatile Channel_Credentials credentials;
+    
+    /**
+     * The authorities the server certificate is checked against, they are kept across rotations
+     */
+    private final KeyStore trusted_authorities;
+    
+    /**
+     * Where the credentials were loaded from, and the password, to reload them when the key store changes
+     */
+    private final String key_store_location;
+    private final String key_store_pass;
+    
+    /**
+     * The digest of the key store the credentials were last loaded from
+     */
+    private byte[] key_store_digest;
+    
+    /**
+     * The periodic check of the key store, null if it is not watched
+     */
+    private ScheduledFuture<?> key_store_watch;
+    
+    /**
+     * When and how the certificate is renewed, null for no automatic renewal
+     */
+    private volatile Renewal_Policy renewal_policy;
+    
+    /**
+     * The next renewal, null if none is scheduled
+     */
+    private ScheduledFuture<?> renewal;
+    
+    /**
+     * Latency, outcome, traffic and error metrics of the calls made through this channel
+     */
+    public final Metrics_Recorder metrics = new Metrics_Recorder();
+    
+    /**
+     * Publishes the metrics, by default nowhere
+     */
+    private Metrics_Exporter metrics_exporter = Metrics_Exporter.NONE;
+
+    /**
+     * How the idempotent calls are retried, by default no retries
+     */
+    private volatile Retry_Policy retry_policy = Retry_Policy.NONE;
+
+    /**
+     * When the identity inquiries are hedged, null for never
+     */
+    private volatile Hedging_Policy hedging_policy;
 
     /**
-     * SSLContext, we can re-use this
+     * The thresholds of the circuit breakers, null for no breakers
      */
-    private final SSLContext tls_context;
+    private volatile Circuit_Breaker_Policy circuit_breaker_policy;
+
+    /**
+     * The circuit breakers, by operation name
+     */
+    private final Map<String, Circuit_Breaker> circuit_breakers = new ConcurrentHashMap<>();
+
+    /**
+     * The concurrent calls reserved for each class of operations, replaced as a whole when changed
+     */
+    private volatile Map<Request_Class, Bulkhead> bulkheads = new EnumMap<>(Request_Class.class);
+
+    /**
+     * Limits the concurrent calls, null for no limit
+     */
+    private volatile Concurrency_Limiter concurrency_limiter;
+
+    /**
+     * Spreads the calls over several endpoints, null to make them all to the endpoint
+     */
+    private volatile Endpoint_Balancer endpoint_balancer;
+
+    /**
+     * What Identity_Plus_API answers when the identity inquiry cannot be made
+     */
+    private volatile Degraded_Policy degraded_policy = Degraded_Policy.FAIL;
+
     /**
      * Constructor
      * 
@@ -159,26 +300,542 @@ public class API_Channel {
      */
     public API_Channel(String endpoint, String key_store_location, String key_store_pass, String trust_store_location) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, FileNotFoundException, IOException, KeyManagementException, UnrecoverableKeyException {
 
-        KeyStore credentials = HTTPS_Utils.load_credentials(HTTPS_Utils.drain(new FileInputStream(key_store_location)), key_store_pass);
-        KeyStore trusted_authorities = HTTPS_Utils.load_trusted_authorities(trust_store_location == null ? null : HTTPS_Utils.drain(new FileInputStream(trust_store_location)));
+        byte[] key_store_data = HTTPS_Utils.drain(new FileInputStream(key_store_location));
+        KeyStore credentials = HTTPS_Utils.load_credentials(key_store_data, key_store_pass);
+        this.trusted_authorities = HTTPS_Utils.load_trusted_authorities(trust_store_location == null ? null : HTTPS_Utils.drain(new FileInputStream(trust_store_location)));
         
         this.endpoint = endpoint;
-        this.certificate = (X509Certificate)credentials.getCertificate(Identity_Plus_Utils.API_CERT_ALIAS);
-        private_key = (PrivateKey)credentials.getKey(Identity_Plus_Utils.API_CERT_ALIAS, key_store_pass.toCharArray());
-        this.tls_context = HTTPS_Utils.prepare_tls_context(credentials, key_store_pass != null ? key_store_pass.toCharArray() : new char[]{}, trusted_authorities);
+        this.key_store_location = key_store_location;
+        this.key_store_pass = key_store_pass;
+        this.key_store_digest = MessageDigest.getInstance("SHA-256").digest(key_store_data);
+        
+        X509Certificate certificate = (X509Certificate)credentials.getCertificate(Identity_Plus_Utils.API_CERT_ALIAS);
+        PrivateKey private_key = (PrivateKey)credentials.getKey(Identity_Plus_Utils.API_CERT_ALIAS, key_store_pass.toCharArray());
+        SSLContext tls_context = HTTPS_Utils.prepare_tls_context(credentials, key_store_pass != null ? key_store_pass.toCharArray() : new char[]{}, trusted_authorities);
+        this.credentials = new Channel_Credentials(certificate, private_key, tls_context);
+        
+        Client_Certificate_Identity.register_caches(metrics);
+        metrics.register_gauge("credentials.expires-in-s", () -> (this.credentials.certificate.getNotAfter().getTime() - System.currentTimeMillis()) / 1000);
+        HTTPS_Utils.register_caches(metrics);
     }
 
     /**
-     * Performs a get request for the Identity_Enquiry object
+     * Opens a channel in the background. Loading the key store (decryption included) and preparing the TLS context 
+     * take a noticeable time, opening the channels of several tenants this way loads them in parallel, and the application 
+     * can carry on starting meanwhile.
+     * 
+     * @param endpoint, the identity+ ReST API url
+     * @param key_store_location
+     * @param key_store_pass
+     * @param trust_store_location, null to trust the generally trusted authorities
+     * @return completes with the channel, or exceptionally with the reason it could not be opened
+     */
+    public static CompletableFuture<API_Channel> open(String endpoint, String key_store_location, String key_store_pass, String trust_store_location){
+        return CompletableFuture.supplyAsync(() -> {
+                try{
+                    return new API_Channel(endpoint, key_store_location, key_store_pass, trust_store_location);
+                }
+                catch(IOException | GeneralSecurityException e){
+                    throw new CompletionException(e);
+                }
+        }, STARTUP);
+    }
+    
+    /**
+     * Warms the channel up before it takes traffic: a first ping makes the full TLS handshake, then the other connections 
+     * are opened in parallel, resuming its session, and are left in the keep-alive cache. The JDK keeps at most 
+     * http.maxConnections (5 by default) idle connections per endpoint, more are not useful.
+     * 
+     * @param connections, how many connections to open
+     * @param deadline, when the warm up must be complete by
+     * @return completes with this channel when all the pings answered, exceptionally if one failed, for example because identity+ can't be reached
+     */
+    public CompletableFuture<API_Channel> prewarm(int connections, Deadline deadline){
+        CompletableFuture<API_Response> first = CompletableFuture.supplyAsync(() -> prewarm_ping(deadline), STARTUP);
+        
+        return first.thenCompose((API_Response r) -> {
+                CompletableFuture<?>[] others = new CompletableFuture<?>[Math.max(0, connections -1)];
+                for(int i = 0; i < others.length; i++) others[i] = CompletableFuture.supplyAsync(() -> prewarm_ping(deadline), STARTUP);
+                
+                return CompletableFuture.allOf(others);
+        }).thenApply((Void v) -> this);
+    }
+    
+    private API_Response prewarm_ping(Deadline deadline){
+        Deadline.Scope scope = deadline.enter();
+        try{
+            API_Response response = ping();
+            if(!response.outcome.is_ok()) throw new IOException("identity+ answered the ping with " + response.outcome);
+            
+            return response;
+        }
+        catch(IOException e){
+            throw new CompletionException(e);
+        }
+        finally{
+            scope.close();
+        }
+    }
+    
+    /**
+     * @return the API client certificate, its private key and the TLS context currently in use
+     */
+    public Channel_Credentials get_credentials(){
+        return credentials;
+    }
+    
+    /**
+     * @return the API client certificate currently in use
+     * @deprecated the certificate is no longer a field, as it changes when the credentials are rotated, use get_credentials()
+     */
+    @Deprecated
+    public X509Certificate certificate(){
+        return credentials.certificate;
+    }
+    
+    /**
+     * @return the private key of the API client certificate currently in use
+     * @deprecated the private key is no longer a field, as it changes when the credentials are rotated, use get_credentials()
+     */
+    @Deprecated
+    public PrivateKey private_key(){
+        return credentials.private_key;
+    }
+    
+    /**
+     * Replaces the credentials of the channel, without disturbing the calls in progress. The calls made from now on use the new 
+     * TLS context. The calls in progress complete on their connections, and the idle connections of the old context are not
+     * reused, they are closed by the keep-alive timeout.
+     * 
+     * @param next, for example Channel_Credentials.of(p12_data, password, null)
+     */
+    public synchronized void rotate(Channel_Credentials next){
+        if(next == null) throw new NullPointerException("The credentials must be specified");
+        
+        Channel_Credentials previous = credentials;
+        credentials = next;
+        HTTPS_Utils.forget_socket_factory(previous.tls_context, metrics);
+        
+        metrics.count("credentials.rotated");
+        Log.log(2, "API channel credentials rotated, the certificate is now " + next.certificate.getSerialNumber() + ", valid until " + next.certificate.getNotAfter(), null);
+        
+        Renewal_Policy policy = renewal_policy;
+        if(policy != null) schedule_renewal(policy, policy.delay_millis(next.certificate, System.currentTimeMillis()));
+    }
+    
+    /**
+     * Replaces the credentials of the channel with a service identity issued by identity+ (see issue_service_identity), 
+     * the server certificate is still checked against the trusted authorities of the channel
+     * 
+     * @param identity
+     * @throws GeneralSecurityException if the identity does not contain usable credentials
+     * @throws IOException
+     */
+    public void rotate(Service_Identity identity) throws GeneralSecurityException, IOException{
+        rotate(Channel_Credentials.of(identity, trusted_authorities));
+    }
+    
+    /**
+     * Replaces the credentials of the channel with a service agent identity issued by identity+ (see issue_service_agent_identity), 
+     * the server certificate is still checked against the trusted authorities of the channel
+     * 
+     * @param identity
+     * @throws GeneralSecurityException if the identity does not contain usable credentials
+     * @throws IOException
+     */
+    public void rotate(Service_Agent_Identity identity) throws GeneralSecurityException, IOException{
+        rotate(Channel_Credentials.of(identity, trusted_authorities));
+    }
+    
+    /**
+     * Renews the certificate of the channel ahead of its expiry, on a background thread (see Renewal_Policy). 
+     * The renewed credentials are only kept in memory, the key store file is not changed.
+     * 
+     * @param policy, for example Renewal_Policy.service_identity(), null to stop renewing
+     */
+    public synchronized void set_renewal_policy(Renewal_Policy policy){
+        this.renewal_policy = policy;
+        
+        if(policy != null) schedule_renewal(policy, policy.delay_millis(credentials.certificate, System.currentTimeMillis()));
+        else if(renewal != null){
+            renewal.cancel(false);
+            renewal = null;
+        }
+    }
+    
+    /**
+     * @return when and how the certificate is renewed, null if it is not
+     */
+    public Renewal_Policy get_renewal_policy(){
+        return renewal_policy;
+    }
+    
+    /**
+     * Renews the certificate now, with the renewal policy, and rotates the channel to it
+     * 
+     * @throws IOException if identity+ did not issue a new identity
+     * @throws GeneralSecurityException if the issued identity does not contain usable credentials
+     */
+    public void renew() throws IOException, GeneralSecurityException{
+        Renewal_Policy policy = renewal_policy;
+        if(policy == null) throw new IllegalStateException("The channel has no renewal policy");
+        
+        API_Response response = policy.renewer.renew(this);
+        if(response instanceof Service_Identity) rotate((Service_Identity)response);
+        else if(response instanceof Service_Agent_Identity) rotate((Service_Agent_Identity)response);
+        else throw new IOException("identity+ did not issue a new identity: " + response.outcome);
+        
+        metrics.count("credentials.renewed");
+    }
+    
+    private synchronized void schedule_renewal(Renewal_Policy policy, long delay_millis){
+        if(renewal != null) renewal.cancel(false);
+        
+        renewal = CREDENTIAL_TASKS.schedule(() -> RENEWALS.execute(() -> {
+                // the policy was changed or removed since
+                if(renewal_policy != policy) return;
+                
+                try{
+                    renew();
+                }
+                catch(Exception e){
+                    metrics.count("credentials.renewal-failed");
+                    Log.log(1, "Unable to renew the API channel certificate, it expires on " + credentials.certificate.getNotAfter(), e);
+                    
+                    synchronized(this){
+                        if(renewal_policy == policy) schedule_renewal(policy, policy.retry_delay_millis());
+                    }
+                }
+        }), delay_millis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Loads the credentials again from the key store the channel was made with, if the file changed
+     * 
+     * @return true if the credentials were replaced, false if the file is the same
+     * @throws GeneralSecurityException if the key store can't be opened with the password of the channel
+     * @throws IOException
+     */
+    public synchronized boolean reload_key_store() throws GeneralSecurityException, IOException{
+        byte[] data = Files.readAllBytes(Paths.get(key_store_location));
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+        if(Arrays.equals(digest, key_store_digest)) return false;
+        
+        rotate(Channel_Credentials.of(data, key_store_pass, trusted_authorities));
+        key_store_digest = digest;
+        
+        return true;
+    }
+    
+    /**
+     * Checks the key store file periodically, on a background thread, and rotates the credentials when it changes (see reload_key_store). 
+     * The file is only read when its modification time or size change. A key store which can't be loaded, for example while it 
+     * is being written, is logged and tried again at the next check.
+     * 
+     * @param period_millis, how often to check, 0 to stop watching
+     */
+    public synchronized void watch_key_store(long period_millis){
+        if(key_store_watch != null) key_store_watch.cancel(false);
+        key_store_watch = null;
+        
+        if(period_millis <= 0) return;
+        
+        File file = new File(key_store_location);
+        long[] seen = {file.lastModified(), file.length()};
+        
+        key_store_watch = CREDENTIAL_TASKS.scheduleWithFixedDelay(() -> {
+                long modified = file.lastModified(), length = file.length();
+                if(modified == seen[0] && length == seen[1]) return;
+                
+                try{
+                    reload_key_store();
+                    seen[0] = modified;
+                    seen[1] = length;
+                }
+                catch(Exception e){
+                    metrics.count("credentials.rotation-failed");
+                    Log.log(1, "Unable to reload the API channel credentials from " + key_store_location, e);
+                }
+        }, period_millis, period_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts publishing the metrics of this channel with the given exporter, the previous exporter, if any, is stopped
+     * 
+     * @param exporter, for example a JMX_Metrics_Exporter
+     * @param name, distinguishes this channel from others in the exported metrics
+     */
+    public synchronized void export_metrics(Metrics_Exporter exporter, String name){
+        metrics_exporter.stop();
+        metrics_exporter = exporter == null ? Metrics_Exporter.NONE : exporter;
+        metrics_exporter.start(name, metrics);
+    }
+
+    /**
+     * Sets how the idempotent calls (identity inquiries and pings) are retried on transient errors.
+     * The other calls change state on the identity+ side and are never retried.
+     * 
+     * @param policy, for example Retry_Policy.default_policy(), null or Retry_Policy.NONE for no retries
+     */
+    public void set_retry_policy(Retry_Policy policy){
+        this.retry_policy = policy == null ? Retry_Policy.NONE : policy;
+    }
+
+    /**
+     * @return how the idempotent calls are retried
+     */
+    public Retry_Policy get_retry_policy(){
+        return retry_policy;
+    }
+
+    /**
+     * Sets when the identity inquiries are hedged: a second inquiry is sent if the first one is slow to answer, 
+     * and the first answer is taken. Hedging trades a little extra load for a shorter tail latency.
+     * 
+     * @param policy, for example Hedging_Policy.default_policy(), null to stop hedging
+     */
+    public void set_hedging_policy(Hedging_Policy policy){
+        this.hedging_policy = policy;
+    }
+
+    /**
+     * @return when the identity inquiries are hedged, null if they are not
+     */
+    public Hedging_Policy get_hedging_policy(){
+        return hedging_policy;
+    }
+
+    /**
+     * Limits the number of concurrent calls to what the identity+ API serves best, the limit adapts to the observed
+     * latencies and errors. Calls over the limit wait briefly and are then rejected with a Rejected_Call_Exception 
+     * (see Concurrency_Limiter). The limit is included in the metrics as limiter.limit.
+     * 
+     * @param limiter, for example Concurrency_Limiter.default_limiter(), null for no limit
+     */
+    public void set_concurrency_limiter(Concurrency_Limiter limiter){
+        this.concurrency_limiter = limiter;
+        if(limiter != null){
+            metrics.register_gauge("limiter.limit", () -> limiter.limit());
+            metrics.register_gauge("limiter.waiting", () -> limiter.waiting());
+        }
+    }
+
+    /**
+     * @return the concurrency limiter, null if there is none
+     */
+    public Concurrency_Limiter get_concurrency_limiter(){
+        return concurrency_limiter;
+    }
+
+    /**
+     * Reserves a number of concurrent calls for a class of operations (see Request_Class), so that the operations
+     * of the other classes cannot starve it. Calls over the bulkhead limit wait briefly and are then rejected with
+     * a Rejected_Call_Exception.
+     * 
+     * If there is a concurrency limiter, it is shared by all the classes and the identity inquiries go first.
+     * 
+     * @param request_class
+     * @param bulkhead, null to remove the bulkhead of the class
+     */
+    public synchronized void set_bulkhead(Request_Class request_class, Bulkhead bulkhead){
+        Map<Request_Class, Bulkhead> updated = new EnumMap<>(bulkheads);
+        if(bulkhead == null) updated.remove(request_class);
+        else{
+            updated.put(request_class, bulkhead);
+            metrics.register_gauge("bulkhead." + request_class + ".in-use", () -> bulkhead.in_use());
+        }
+
+        bulkheads = updated;
+    }
+
+    /**
+     * @param request_class
+     * @return the bulkhead of the class, null if there is none
+     */
+    public Bulkhead get_bulkhead(Request_Class request_class){
+        return bulkheads.get(request_class);
+    }
+
+    /**
+     * Decides which class an operation belongs to, for the bulkheads and the priority of the identity inquiries
+     * 
+     * @param method
+     * @param api_request, null for ping
+     * @return
+     */
+    protected Request_Class request_class(Request_Method method, API_Request api_request){
+        if(api_request == null || api_request instanceof Identity_Inquiry) return Request_Class.inquiry;
+        else if(api_request instanceof Intrusion_Report) return Request_Class.reporting;
+        else if(api_request instanceof Service_Identity_Request || api_request instanceof Service_Agent_Identity_Request) return Request_Class.provisioning;
+        else return Request_Class.writes;
+    }
+
+    /**
+     * Spreads the calls over several endpoints, for example in different regions. Calls which cannot reach an 
+     * endpoint fail over to the others and endpoints failing repeatedly are ejected for a while (see Endpoint_Balancer).
+     * The sign-on urls are still derived from the endpoint of the channel.
+     * 
+     * @param balancer, for example Endpoint_Balancer.parse("https://api.eu... region=eu; https://api.us... region=us", "eu", channel.metrics),
+     * null to make all the calls to the endpoint of the channel
+     */
+    public void set_endpoints(Endpoint_Balancer balancer){
+        this.endpoint_balancer = balancer;
+    }
+
+    /**
+     * @return the endpoints the calls are spread over, null if there is only the endpoint of the channel
+     */
+    public Endpoint_Balancer get_endpoints(){
+        return endpoint_balancer;
+    }
+
+    /**
+     * Puts a circuit breaker on each operation, so that calls fail immediately with a Rejected_Call_Exception 
+     * while the endpoint is down or too slow. Open breakers are probed with pings, which are never rejected.
+     * 
+     * @param policy, for example Circuit_Breaker_Policy.default_policy(), null to remove the breakers
+     */
+    public void set_circuit_breaker_policy(Circuit_Breaker_Policy policy){
+        this.circuit_breaker_policy = policy;
+        circuit_breakers.clear();
+    }
+
+    /**
+     * @return the circuit breakers created so far, by operation name, for example "GET Identity-Inquiry"
+     */
+    public Map<String, Circuit_Breaker> get_circuit_breakers(){
+        return circuit_breakers;
+    }
+
+    /**
+     * Sets what Identity_Plus_API answers when the identity inquiry fails or is rejected
+     * 
+     * @param policy, by default Degraded_Policy.FAIL
+     */
+    public void set_degraded_policy(Degraded_Policy policy){
+        this.degraded_policy = policy == null ? Degraded_Policy.FAIL : policy;
+        this.degraded_policy.register_cache(metrics);
+    }
+
+    public Degraded_Policy get_degraded_policy(){
+        return degraded_policy;
+    }
+
+    /**
+     * Performs a get request for the Identity_Enquiry object. 
+     * 
+     * Like all the calls of the channel, it must complete before the current deadline of the thread, if there is one 
+     * (see Deadline.enter), otherwise it fails with a SocketTimeoutException.
      * 
      * @param certificate_info
      * @return
      * @throws IOException
      */
-    public synchronized API_Response get(Identity_Inquiry certificate_info) throws IOException{
+    public API_Response get(Identity_Inquiry certificate_info) throws IOException{
         return dispatch(Request_Method.GET, certificate_info);
     }
 
+    /**
+     * Performs a get request for the Identity_Enquiry object, retries included, within the given deadline. 
+     * If the retry policy has a time budget of its own, the earliest of the two applies.
+     * 
+     * @param certificate_info
+     * @param deadline
+     * @return
+     * @throws IOException
+     */
+    public API_Response get(Identity_Inquiry certificate_info, Deadline deadline) throws IOException{
+        return dispatch(endpoint, Request_Method.GET, certificate_info, deadline);
+    }
+
+    /**
+     * Performs the identity inquiries of a batch, fanning them out over a number of parallel calls. At most twice 
+     * the parallelism inquiries are pending at any time, so the inquiries can be streamed from a large source 
+     * (a lazy Iterable) without holding them in memory.
+     * 
+     * The results are passed to the handler as they arrive, not in the order of the inquiries (see Inquiry_Result.index),
+     * and always on the calling thread, so the handler does not have to be thread safe. Failed inquiries do not stop the
+     * batch, they are reported with their error.
+     * 
+     * @param inquiries
+     * @param parallelism, the number of concurrent calls
+     * @param handler, receives the result of each inquiry
+     * @return the number of inquiries that failed
+     * @throws InterruptedException if the calling thread was interrupted, the pending inquiries are abandoned
+     */
+    public int get(Iterable<Identity_Inquiry> inquiries, int parallelism, Consumer<Inquiry_Result> handler) throws InterruptedException{
+        if(parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, (Runnable r) -> {
+                Thread t = new Thread(r, "identity-plus-batch");
+                t.setDaemon(true);
+                return t;
+        });
+        ExecutorCompletionService<Inquiry_Result> completed = new ExecutorCompletionService<>(workers);
+        
+        // the workers make the inquiries within the deadline of the calling thread
+        Deadline deadline = Deadline.current();
+        int in_flight = 0;
+        int index = 0;
+        int failed = 0;
+        
+        try{
+            for(Identity_Inquiry inquiry : inquiries){
+                if(in_flight == 2 * parallelism){
+                    failed += deliver(completed.take(), handler);
+                    in_flight--;
+                }
+                
+                int i = index++;
+                completed.submit(() -> {
+                        try{
+                            return new Inquiry_Result(i, inquiry, get(inquiry, deadline), null);
+                        }
+                        catch(IOException | RuntimeException e){
+                            return new Inquiry_Result(i, inquiry, null, e);
+                        }
+                });
+                in_flight++;
+            }
+            
+            for(; in_flight > 0; in_flight--) failed += deliver(completed.take(), handler);
+        }
+        finally{
+            workers.shutdownNow();
+        }
+        
+        return failed;
+    }
+    
+    /**
+     * Performs the identity inquiries of a batch (see get(Iterable, int, Consumer)) and collects the results
+     * 
+     * @param inquiries
+     * @param parallelism, the number of concurrent calls
+     * @return the results, in the order of the inquiries
+     * @throws InterruptedException
+     */
+    public List<Inquiry_Result> get(Collection<Identity_Inquiry> inquiries, int parallelism) throws InterruptedException{
+        Inquiry_Result[] results = new Inquiry_Result[inquiries.size()];
+        get(inquiries, parallelism, (Inquiry_Result r) -> results[r.index] = r);
+        
+        return Arrays.asList(results);
+    }
+    
+    private static int deliver(Future<Inquiry_Result> future, Consumer<Inquiry_Result> handler) throws InterruptedException{
+        Inquiry_Result result;
+        try{
+            result = future.get();
+        }
+        catch(ExecutionException e){
+            // the tasks catch their own exceptions, only errors end up here
+            throw new RuntimeException(e.getCause());
+        }
+        
+        handler.accept(result);
+        return result.succeeded() ? 0 : 1;
+    }
+
     /**
      * Performs a get request for the Identity_Enquiry object
      * 
@@ -186,7 +843,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response ping() throws IOException{
+    public API_Response ping() throws IOException{
         return dispatch(Request_Method.PUT, null);
     }
 
@@ -197,7 +854,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(Local_User_Information local_user_information) throws IOException{
+    public API_Response put(Local_User_Information local_user_information) throws IOException{
         return dispatch(Request_Method.PUT, local_user_information);
     }
     
@@ -208,7 +865,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(Unlock_Request unlock_request) throws IOException{
+    public API_Response put(Unlock_Request unlock_request) throws IOException{
         return dispatch(Request_Method.PUT, unlock_request);
     }
 
@@ -219,7 +876,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(Intrusion_Report intrusion_report) throws IOException{
+    public API_Response put(Intrusion_Report intrusion_report) throws IOException{
         return dispatch(Request_Method.PUT, intrusion_report);
     }
 
@@ -231,7 +888,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(Intent intent) throws IOException{
+    public API_Response put(Intent intent) throws IOException{
         return dispatch(Request_Method.PUT, intent);
     }
 
@@ -242,7 +899,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(Trust local_user_update) throws IOException{
+    public API_Response put(Trust local_user_update) throws IOException{
         return dispatch(Request_Method.PUT, local_user_update);
     }
 
@@ -253,7 +910,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(Personal_Data_Disclosure_Request pii_disclosure) throws IOException{
+    public API_Response put(Personal_Data_Disclosure_Request pii_disclosure) throws IOException{
         return dispatch(Request_Method.PUT, pii_disclosure);
     }
 
@@ -264,7 +921,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(Message_Delivery_Request mesage_delivery_request) throws IOException{
+    public API_Response put(Message_Delivery_Request mesage_delivery_request) throws IOException{
         return dispatch(Request_Method.PUT, mesage_delivery_request);
     }
 
@@ -275,7 +932,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response put(User_Secret secret) throws IOException{
+    public API_Response put(User_Secret secret) throws IOException{
         return dispatch(Request_Method.PUT, secret);
     }
 
@@ -286,7 +943,7 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    public synchronized API_Response delete(Local_User_Reference local_user_ref) throws IOException{
+    public API_Response delete(Local_User_Reference local_user_ref) throws IOException{
         return dispatch(Request_Method.DELETE, local_user_ref);
     }
     
@@ -298,11 +955,114 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    private synchronized API_Response dispatch(final Request_Method method, API_Request api_request) throws IOException{
-            return dispatch(endpoint, method, api_request);
+    private API_Response dispatch(final Request_Method method, API_Request api_request) throws IOException{
+            return dispatch(endpoint, method, api_request, Deadline.current());
+    }
+
+    /**
+     * Decides which calls can be retried safely. By default only the identity inquiries and the pings are, 
+     * as they don't change anything on the identity+ side
+     * 
+     * @param method
+     * @param api_request, null for ping
+     * @return
+     */
+    protected boolean is_idempotent(Request_Method method, API_Request api_request){
+        return (method == Request_Method.GET && api_request instanceof Identity_Inquiry) || api_request == null;
+    }
+
+    /**
+     * Makes the call, retrying idempotent calls on transient errors as long as the retry policy, 
+     * the retry budget and the deadline allow it. The last error is thrown when retries are exhausted
+     */
+    private API_Response dispatch(String endpoint, final Request_Method method, API_Request api_request, Deadline deadline) throws IOException{
+        Retry_Policy policy = retry_policy;
+        if(policy.max_attempts == 1 || !is_idempotent(method, api_request)) return attempt(endpoint, method, api_request, deadline);
+
+        deadline = Deadline.earliest(deadline, Deadline.after(policy.deadline_millis));
+        if(policy.budget != null) policy.budget.on_call();
+
+        long delay = 0;
+        for(int attempt = 1; ; attempt++){
+            try{
+                API_Response response = attempt(endpoint, method, api_request, deadline);
+                if(attempt > 1) metrics.count("retry.recovered");
+                return response;
+            }
+            catch(IOException e){
+                if(attempt >= policy.max_attempts || !policy.is_retryable(e)){
+                    if(attempt > 1) metrics.count("retry.exhausted");
+                    throw e;
+                }
+
+                delay = policy.next_delay(delay);
+                if(deadline.remaining_millis() <= delay){
+                    metrics.count("retry.deadline-exceeded");
+                    throw e;
+                }
+
+                if(policy.budget != null && !policy.budget.try_acquire()){
+                    metrics.count("retry.budget-exhausted");
+                    throw e;
+                }
+
+                metrics.count("retry.attempts");
+                try{
+                    Thread.sleep(delay);
+                }
+                catch(InterruptedException ie){
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
     }
     
     
+    /**
+     * Makes one attempt of a call, hedged if it is an identity inquiry and hedging is on
+     */
+    private API_Response attempt(String endpoint, final Request_Method method, API_Request api_request, Deadline deadline) throws IOException{
+        Hedging_Policy hedging = hedging_policy;
+        if(hedging == null || method != Request_Method.GET || !(api_request instanceof Identity_Inquiry)) return balanced(endpoint, method, api_request, null, deadline);
+
+        // each hedged attempt chooses its endpoint, the second one is likely to go to another
+        return hedging.call((Call_Handle handle) -> balanced(endpoint, method, api_request, handle, deadline), deadline, metrics);
+    }
+
+    /**
+     * Makes the call on the endpoint chosen by the balancer, failing over to the others while the chosen ones cannot 
+     * be reached. Calls to an explicit endpoint, other than the one of the channel, are made as they are
+     */
+    private API_Response balanced(String endpoint, final Request_Method method, API_Request api_request, Call_Handle handle, Deadline deadline) throws IOException{
+        Endpoint_Balancer balancer = endpoint_balancer;
+        if(balancer == null || !endpoint.equals(this.endpoint)) return dispatch(endpoint, method, api_request, handle, deadline);
+
+        List<Endpoint> tried = new ArrayList<>(2);
+        for(Endpoint chosen = balancer.choose(null); ; ){
+            tried.add(chosen);
+            long start = System.nanoTime();
+            balancer.call_started(chosen);
+
+            try{
+                API_Response response = dispatch(chosen.url, method, api_request, handle, deadline);
+                balancer.call_ended(chosen, System.nanoTime() - start, null);
+                return response;
+            }
+            catch(IOException | RuntimeException e){
+                if(handle != null && handle.is_cancelled()){
+                    balancer.call_abandoned(chosen);
+                    throw e;
+                }
+
+                balancer.call_ended(chosen, System.nanoTime() - start, e);
+                if(!Endpoint_Balancer.is_safe_to_fail_over(e) || deadline.expired() || (chosen = balancer.choose(tried)) == null) throw e;
+
+                metrics.count("endpoint.failover");
+            }
+        }
+    }
+
     /**
      * Makes the HTTP request to a given endpoint, given the method and the Java API Request_Object
      * 
@@ -312,15 +1072,112 @@ public class API_Channel {
      * @return
      * @throws IOException
      */
-    private synchronized API_Response dispatch(String endpoint, final Request_Method method, API_Request api_request) throws IOException{
+    private API_Response dispatch(String endpoint, final Request_Method method, API_Request api_request) throws IOException{
+        return dispatch(endpoint, method, api_request, null, Deadline.current());
+    }
+
+    /**
+     * @return the circuit breaker of the operation, null if there are no breakers or for pings
+     */
+    private Circuit_Breaker circuit_breaker(Request_Method method, Class<?> request_type){
+        Circuit_Breaker_Policy policy = circuit_breaker_policy;
+        if(policy == null || request_type == null) return null;
+
+        String operation = metrics.operation(method, request_type).name;
+        Circuit_Breaker breaker = circuit_breakers.get(operation);
+        if(breaker == null) breaker = circuit_breakers.computeIfAbsent(operation, (String name) -> new Circuit_Breaker(name, policy, () -> balanced(endpoint, Request_Method.PUT, null, null, Deadline.after(policy.slow_call_millis)), metrics));
+
+        return breaker;
+    }
+
+    /**
+     * Makes the HTTP request, which can be cancelled through the handle and must complete before the deadline, 
+     * within the bulkhead of its class
+     */
+    private API_Response dispatch(String endpoint, final Request_Method method, API_Request api_request, Call_Handle handle, Deadline deadline) throws IOException{
+        Request_Class request_class = request_class(method, api_request);
+        Bulkhead bulkhead = bulkheads.get(request_class);
+        if(bulkhead == null) return send(endpoint, method, api_request, request_class, handle, deadline);
+        
+        try{
+            bulkhead.acquire(deadline);
+        }
+        catch(Rejected_Call_Exception e){
+            metrics.count("bulkhead." + request_class + ".rejected");
+            metrics.record_error(method, api_request == null ? null : api_request.getClass(), Error_Category.rejected);
+            throw e;
+        }
+        
+        try{
+            return send(endpoint, method, api_request, request_class, handle, deadline);
+        }
+        finally{
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Makes the HTTP request, within the concurrency limit and the circuit breaker of the operation
+     */
+    private API_Response send(String endpoint, final Request_Method method, API_Request api_request, Request_Class request_class, Call_Handle handle, Deadline deadline) throws IOException{
 
         API_Response[] response = {null};
+        Class<?> request_type = api_request == null ? null : api_request.getClass();
+        Circuit_Breaker breaker = circuit_breaker(method, request_type);
+        Concurrency_Limiter limiter = concurrency_limiter;
         
-        HTTPS_Utils.call(endpoint, method.name(), new String[]{"Content-Type: application/json", "User-Agent: Identity + API Client"}, api_request != null ? api_request.to_json() : "", tls_context,  (int code, InputStream body) -> {
-                JsonReader reader = Json.createReader(body);
-                JsonObject jsso = reader.readObject();
-                response[0] = decode_response(jsso);
-        });
+        // the limit first, a breaker permit taken for a trial call must not be wasted on a rejection
+        try{
+            if(limiter != null) limiter.acquire(deadline, request_class == Request_Class.inquiry);
+        }
+        catch(Rejected_Call_Exception e){
+            metrics.count("limiter.rejected");
+            metrics.record_error(method, request_type, Error_Category.rejected);
+            throw e;
+        }
+        
+        if(breaker != null) try{
+            breaker.acquire();
+        }
+        catch(Rejected_Call_Exception e){
+            if(limiter != null) limiter.abandon();
+            metrics.record_error(method, request_type, Error_Category.rejected);
+            throw e;
+        }
+        
+        Throwable error = null;
+        long start = System.nanoTime();
+        metrics.call_started();
+        try{
+            HTTPS_Utils.call(endpoint, method.name(), new String[]{"Content-Type: application/json", "User-Agent: Identity + API Client"}, api_request != null ? api_request.to_json() : "", credentials.tls_context, metrics, handle, deadline, (int code, InputStream body) -> {
+                    JsonReader reader = Json.createReader(body);
+                    JsonObject jsso = reader.readObject();
+                    response[0] = decode_response(jsso);
+            });
+            
+            long elapsed = System.nanoTime() - start;
+            metrics.record(method, request_type, elapsed, response[0].outcome);
+            if(breaker != null) breaker.record(elapsed, false);
+        }
+        catch(IOException | RuntimeException e){
+            error = e;
+            // an abandoned hedged attempt is not an error
+            if(handle != null && handle.is_cancelled() && !deadline.expired()) metrics.count("hedge.cancelled");
+            else{
+                metrics.record_error(method, request_type, Error_Category.of(e));
+                if(breaker != null) breaker.record(System.nanoTime() - start, breaker.policy.is_failure(e));
+            }
+            throw e;
+        }
+        finally{
+            metrics.call_ended();
+            
+            if(limiter != null){
+                if(handle != null && handle.is_cancelled() && !deadline.expired()) limiter.abandon();
+                else if(response[0] != null) limiter.release(System.nanoTime() - start, response[0].outcome == Outcome.ER_1106_General_Identity_Plus_API_Problem);
+                else limiter.release(System.nanoTime() - start, error == null || Endpoint_Balancer.is_failure(error));
+            }
+        }
         
         return response[0];
     }
@@ -354,7 +1211,7 @@ public class API_Channel {
         else if(jsso.keySet().contains(Anonymous_ID.JSON_NAME)) return new Anonymous_ID(jsso.getJsonObject(Anonymous_ID.JSON_NAME));
         else if(jsso.keySet().contains(Reference_Number.JSON_NAME)) return new Reference_Number(jsso.getJsonObject(Anonymous_ID.JSON_NAME));
         else if(jsso.keySet().contains(Intent_Reference.JSON_NAME)) return new Intent_Reference(jsso.getJsonObject(Intent_Reference.JSON_NAME));
-        else if(jsso.keySet().contains(Message_Delivery_Response.JSON_NAME)) return new Intent_Reference(jsso.getJsonObject(Message_Delivery_Response.JSON_NAME));
+        else if(jsso.keySet().contains(Message_Delivery_Response.JSON_NAME)) return new Message_Delivery_Response(jsso.getJsonObject(Message_Delivery_Response.JSON_NAME));
         else if(jsso.keySet().contains(Service_Identity.JSON_NAME)) return new Service_Identity(jsso.getJsonObject(Service_Identity.JSON_NAME));
         else if(jsso.keySet().contains(Service_Agent_Identity.JSON_NAME)) return new Service_Agent_Identity(jsso.getJsonObject(Service_Agent_Identity.JSON_NAME));
         else if(jsso.keySet().contains(Recovery_Code.JSON_NAME)) return new Recovery_Code(jsso.getJsonObject(Recovery_Code.JSON_NAME));
@@ -374,10 +1231,11 @@ public class API_Channel {
             byte[] retrival_bytes = extraction.to_json().getBytes("UTF-8");
             if(retrival_bytes.length > 245) throw new RuntimeException("Return URL is too long. Instead of adding a long query, you can store the query in session variable and append pass the variable's id to the request.");
             
+            Channel_Credentials credentials = this.credentials;
             StringBuilder sb = new StringBuilder(endpoint + "/anonymous-id?api=");
-            sb.append(certificate.getSerialNumber());
+            sb.append(credentials.certificate.getSerialNumber());
             sb.append("&payload=");
-            sb.append(Base64.getUrlEncoder().encodeToString(Identity_Plus_Utils.encrypt(retrival_bytes, private_key)));
+            sb.append(Base64.getUrlEncoder().encodeToString(Identity_Plus_Utils.encrypt(retrival_bytes, credentials.private_key)));
             
             return sb.toString();
         }
@@ -408,10 +1266,11 @@ public class API_Channel {
             String endpoint = this.endpoint.replace("api.", "signon.");
             endpoint = endpoint.substring(0,  endpoint.lastIndexOf('/'));
             
+            Channel_Credentials credentials = this.credentials;
             StringBuilder sb = new StringBuilder(endpoint + "?api=");
-            sb.append(certificate.getSerialNumber());
+            sb.append(credentials.certificate.getSerialNumber());
             sb.append("&payload=");
-            sb.append(Base64.getUrlEncoder().encodeToString(Identity_Plus_Utils.encrypt(retrival_bytes, private_key)));
+            sb.append(Base64.getUrlEncoder().encodeToString(Identity_Plus_Utils.encrypt(retrival_bytes, credentials.private_key)));
             
             return sb.toString();
         }
@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+
+import javax.net.ssl.SSLContext;
+
+import identity.plus.api.communication.Service_Agent_Identity;
+import identity.plus.api.communication.Service_Identity;
+import identity.plus.api.util.HTTPS_Utils;
+
+/**
+ * The API client certificate, its private key and the TLS context made from them. The three are always
+ * replaced together, so an API_Channel swaps its credentials with a single reference.
+ */
+public class Channel_Credentials {
+    /**
+     * The API client certificate
+     */
+    public final X509Certificate certificate;
+
+    /**
+     * The private key of the API client certificate
+     */
+    public final PrivateKey private_key;
+
+    /**
+     * The TLS context the calls are made with
+     */
+    public final SSLContext tls_context;
+
+    public Channel_Credentials(X509Certificate certificate, PrivateKey private_key, SSLContext tls_context){
+        this.certificate = certificate;
+        this.private_key = private_key;
+        this.tls_context = tls_context;
+    }
+
+    /**
+     * Prepares the credentials from a key store. The certificate is the one under the identity+ API alias,
+     * or the first key entry if the store was not made by identity+ (PEM material, service identities)
+     *
+     * @param key_store, the client certificate and private key
+     * @param key_store_pass
+     * @param trusted_authorities, null to trust the generally trusted authorities
+     * @return
+     * @throws GeneralSecurityException if the store holds no key entry or the password is wrong
+     */
+    public static Channel_Credentials of(KeyStore key_store, String key_store_pass, KeyStore trusted_authorities) throws GeneralSecurityException{
+        char[] pass = key_store_pass != null ? key_store_pass.toCharArray() : new char[]{};
+        String alias = key_alias(key_store);
+
+        X509Certificate certificate = (X509Certificate)key_store.getCertificate(alias);
+        PrivateKey private_key = (PrivateKey)key_store.getKey(alias, pass);
+        SSLContext tls_context = HTTPS_Utils.prepare_tls_context(key_store, pass, trusted_authorities);
+
+        return new Channel_Credentials(certificate, private_key, tls_context);
+    }
+
+    /**
+     * Prepares the credentials from the bytes of a PKCS12 file
+     *
+     * @param p12_data
+     * @param p12_password
+     * @param trusted_authorities, null to trust the generally trusted authorities
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static Channel_Credentials of(byte[] p12_data, String p12_password, KeyStore trusted_authorities) throws GeneralSecurityException, IOException{
+        return of(HTTPS_Utils.load_credentials(p12_data, p12_password), p12_password, trusted_authorities);
+    }
+
+    /**
+     * Prepares the credentials from a PEM encoded certificate / key pair
+     *
+     * @param cert_data
+     * @param key_data
+     * @param trusted_authorities, null to trust the generally trusted authorities
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static Channel_Credentials of(byte[] cert_data, byte[] key_data, KeyStore trusted_authorities) throws GeneralSecurityException, IOException{
+        return of(HTTPS_Utils.load_credentials(cert_data, key_data), null, trusted_authorities);
+    }
+
+    /**
+     * Prepares the credentials from a service identity issued by identity+, from the p12 if there is one, from the PEM pair otherwise
+     *
+     * @param identity
+     * @param trusted_authorities, null to trust the generally trusted authorities
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static Channel_Credentials of(Service_Identity identity, KeyStore trusted_authorities) throws GeneralSecurityException, IOException{
+        if(identity.p12 == null && identity.certificate == null) throw new GeneralSecurityException("The service identity holds no credentials: " + identity.outcome);
+        else if(identity.p12 != null) return of(identity.p12, identity.password, trusted_authorities);
+        else return of(identity.certificate, identity.private_key, trusted_authorities);
+    }
+
+    /**
+     * Prepares the credentials from a service agent identity issued by identity+, from the p12 if there is one, from the PEM pair otherwise
+     *
+     * @param identity
+     * @param trusted_authorities, null to trust the generally trusted authorities
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public static Channel_Credentials of(Service_Agent_Identity identity, KeyStore trusted_authorities) throws GeneralSecurityException, IOException{
+        if(identity.p12 == null && identity.certificate == null) throw new GeneralSecurityException("The service agent identity holds no credentials: " + identity.outcome);
+        else if(identity.p12 != null) return of(identity.p12, identity.password, trusted_authorities);
+        else return of(identity.certificate, identity.private_key, trusted_authorities);
+    }
+
+    private static String key_alias(KeyStore key_store) throws GeneralSecurityException{
+        if(key_store.isKeyEntry(Identity_Plus_Utils.API_CERT_ALIAS)) return Identity_Plus_Utils.API_CERT_ALIAS;
+
+        for(Enumeration<String> aliases = key_store.aliases(); aliases.hasMoreElements(); ){
+            String alias = aliases.nextElement();
+            if(key_store.isKeyEntry(alias)) return alias;
+        }
+
+        throw new GeneralSecurityException("The key store holds no certificate and private key");
+    }
+}
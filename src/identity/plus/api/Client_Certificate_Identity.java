@@ -0,0 +1,298 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+import javax.servlet.http.HttpServletRequest;
+
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.util.TTL_Cache;
+
+/**
+ * The identity related fields of a client certificate, parsed once and cached.
+ *
+ * On nodes terminating mTLS, the same client certificate is presented over and over, so the
+ * decimal serial number and the fields from the subject are remembered per certificate rather than
+ * being recomputed at each request. Certificates are compared by their encoding, so the cache works
+ * even if the container creates new certificate objects for the same client.
+ *
+ * When TLS is offloaded to a reverse proxy, the identity is extracted from the headers the proxy forwards,
+ * the hexadecimal serial number or, if explicitly configured, the full certificate (see from_proxy_headers).
+ */
+public class Client_Certificate_Identity {
+    /**
+     * The header carrying the hexadecimal serial number of the client certificate
+     */
+    public static final String SERIAL_HEADER = "X-TLS-Client-Serial";
+
+    /**
+     * Headers proxies commonly forward the full client certificate in, any of them can be configured as the trusted certificate header:
+     *     X-Forwarded-Client-Cert     Envoy, the Cert="..." element, URL encoded PEM
+     *     X-SSL-Client-Cert           nginx $ssl_client_escaped_cert (URL encoded PEM) or Apache SSL_CLIENT_CERT (PEM)
+     *     X-Client-Cert               same as above, alternative naming
+     */
+    public static final String[] CERTIFICATE_HEADERS = {"X-Forwarded-Client-Cert", "X-SSL-Client-Cert", "X-Client-Cert"};
+
+    /**
+     * How long a parsed certificate is remembered, in milliseconds
+     */
+    private static final long CACHE_TTL = 3600000;
+
+    /**
+     * Parsed certificates, by certificate
+     */
+    private static final TTL_Cache<X509Certificate, Client_Certificate_Identity> CACHE = new TTL_Cache<>(CACHE_TTL, 10000);
+
+    /**
+     * Decimal serial numbers, by the hexadecimal form received from the proxy
+     */
+    private static final TTL_Cache<String, Client_Certificate_Identity> SERIAL_CACHE = new TTL_Cache<>(CACHE_TTL, 10000);
+
+    /**
+     * Parsed certificates, by the digest of the header they were forwarded in
+     */
+    private static final TTL_Cache<String, Client_Certificate_Identity> FORWARDED_CACHE = new TTL_Cache<>(CACHE_TTL, 10000);
+
+    private static final String PEM_BEGIN = "-----BEGIN CERTIFICATE-----";
+    private static final String PEM_END = "-----END CERTIFICATE-----";
+
+    /**
+     * The client certificate, null if only the serial number was forwarded by the proxy
+     */
+    public final X509Certificate certificate;
+
+    /**
+     * The certificate serial number, as a decimal string
+     */
+    public final String serial_number;
+
+    /**
+     * The common name of the certificate, it holds the name of the device
+     */
+    public final String device_id;
+
+    /**
+     * The identity+ anonymous id extracted from the certificate
+     */
+    public final String anonymous_id;
+
+    private Client_Certificate_Identity(X509Certificate certificate){
+        this.certificate = certificate;
+        this.serial_number = certificate.getSerialNumber().toString();
+        this.device_id = Identity_Plus_Utils.extract_dn_field(certificate.getSubjectX500Principal(), "CN");
+        this.anonymous_id = Identity_Plus_Utils.extract_identity_plus_anonymous_id(certificate);
+    }
+
+    private Client_Certificate_Identity(String serial_number){
+        this.certificate = null;
+        this.serial_number = serial_number;
+        this.device_id = null;
+        this.anonymous_id = null;
+    }
+
+    /**
+     * Includes the hit ratios of the certificate caches in the metrics
+     *
+     * @param metrics
+     */
+    public static void register_caches(Metrics_Recorder metrics){
+        metrics.register_cache("client-certificates", CACHE);
+        metrics.register_cache("forwarded-serial-numbers", SERIAL_CACHE);
+        metrics.register_cache("forwarded-certificates", FORWARDED_CACHE);
+    }
+
+    /**
+     * Gets the identity fields of the certificate, from the cache if it was seen before
+     *
+     * @param certificate
+     * @return
+     */
+    public static Client_Certificate_Identity of(X509Certificate certificate){
+        Client_Certificate_Identity identity = CACHE.get(certificate);
+
+        if(identity == null){
+            identity = new Client_Certificate_Identity(certificate);
+            CACHE.put(certificate, identity);
+        }
+
+        return identity;
+    }
+
+    /**
+     * Gets the identity from the hexadecimal serial number forwarded by a proxy, from the cache if it was seen before
+     *
+     * @param hex_serial_number
+     * @return
+     * @throws NumberFormatException if the serial number is not hexadecimal
+     */
+    public static Client_Certificate_Identity of_serial_number(String hex_serial_number){
+        Client_Certificate_Identity identity = SERIAL_CACHE.get(hex_serial_number);
+
+        if(identity == null){
+            identity = new Client_Certificate_Identity(Identity_Plus_Utils.hex_to_decimal(hex_serial_number));
+            SERIAL_CACHE.put(hex_serial_number, identity);
+        }
+
+        return identity;
+    }
+
+    /**
+     * Gets the identity from the serial number header forwarded by a TLS offloading proxy
+     *
+     * @param request
+     * @return the identity, or null if the proxy did not forward the header
+     * @throws IllegalArgumentException if the forwarded value is malformed
+     */
+    public static Client_Certificate_Identity from_proxy_headers(HttpServletRequest request){
+        return from_proxy_headers(request, null);
+    }
+
+    /**
+     * Gets the identity from the headers forwarded by a TLS offloading proxy. The serial number header always wins,
+     * the certificate header is only read if the serial number is absent.
+     *
+     * The certificate header must only be configured if the proxy sets it and removes it from the incoming requests,
+     * otherwise any client can present a self made certificate in it.
+     *
+     * @param request
+     * @param certificate_header, the one header the proxy forwards the full certificate in, null to only trust the serial number header
+     * @return the identity, or null if the proxy did not forward any of the headers
+     * @throws IllegalArgumentException if the forwarded value is malformed
+     */
+    public static Client_Certificate_Identity from_proxy_headers(HttpServletRequest request, String certificate_header){
+        String serial_number = request.getHeader(SERIAL_HEADER);
+        if(serial_number != null && serial_number.length() > 0) return of_serial_number(serial_number);
+
+        if(certificate_header != null){
+            String value = request.getHeader(certificate_header);
+            if(value != null && value.length() > 0) return of_forwarded_certificate(value);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the identity from a certificate forwarded by a proxy, either as PEM, URL encoded PEM or as an Envoy
+     * X-Forwarded-Client-Cert element. Parsed certificates are cached by the digest of the header value.
+     *
+     * @param header_value
+     * @return
+     * @throws IllegalArgumentException if the value does not contain a valid certificate
+     */
+    public static Client_Certificate_Identity of_forwarded_certificate(String header_value){
+        String digest = digest(header_value);
+        Client_Certificate_Identity identity = FORWARDED_CACHE.get(digest);
+
+        if(identity == null){
+            identity = of(parse_forwarded_certificate(header_value));
+            FORWARDED_CACHE.put(digest, identity);
+        }
+
+        return identity;
+    }
+
+    private static X509Certificate parse_forwarded_certificate(String value){
+        try{
+            // Envoy: By=...;Hash=...;Cert="...";Chain="...";Subject="..." the original client is the first element
+            int idx = value.indexOf("Cert=");
+            while(idx > 0 && value.charAt(idx -1) != ';' && value.charAt(idx -1) != ',') idx = value.indexOf("Cert=", idx +1);
+            if(idx >= 0){
+                int start = idx + "Cert=".length();
+                int end;
+                if(start < value.length() && value.charAt(start) == '"') end = value.indexOf('"', ++start);
+                else{
+                    end = start;
+                    while(end < value.length() && value.charAt(end) != ';' && value.charAt(end) != ',') end++;
+                }
+                value = value.substring(start, end < 0 ? value.length() : end);
+            }
+
+            if(value.indexOf('%') >= 0) value = percent_decode(value);
+
+            int begin = value.indexOf(PEM_BEGIN);
+            int end = value.indexOf(PEM_END, begin +1);
+            if(begin < 0 || end < 0) throw new IllegalArgumentException("No PEM encoded certificate in the forwarded value");
+
+            // the MIME decoder skips the line breaks, or the spaces and tabs some proxies replace them with
+            byte[] der = Base64.getMimeDecoder().decode(value.substring(begin + PEM_BEGIN.length(), end));
+            return (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der));
+        }
+        catch(CertificateException e){
+            throw new IllegalArgumentException("Unable to parse forwarded client certificate", e);
+        }
+    }
+
+    /**
+     * Decodes the %XX sequences only. URLDecoder is a form decoder, it would also turn the '+' characters of the 
+     * Base64 content into spaces, which the MIME decoder then skips
+     */
+    private static String percent_decode(String value){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            int high = c == '%' && i +2 < value.length() ? Character.digit(value.charAt(i +1), 16) : -1;
+            int low = high >= 0 ? Character.digit(value.charAt(i +2), 16) : -1;
+
+            if(low >= 0){
+                bytes.write(high << 4 | low);
+                i += 2;
+            }
+            else{
+                byte[] literal = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(literal, 0, literal.length);
+            }
+        }
+
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String digest(String value){
+        try{
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch(NoSuchAlgorithmException e){
+            // SHA-256 is mandatory on every Java platform
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Identity_Profile;
+import identity.plus.api.communication.Outcome;
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.util.TTL_Cache;
+
+/**
+ * What Identity_Plus_API answers when the identity inquiry cannot be made, because the identity+ API is unreachable,
+ * failing, or its circuit breaker is open.
+ * 
+ * The answer is either a fixed outcome, for example ER_1106_General_Identity_Plus_API_Problem (the default) to let the
+ * application decide, OK_0001_Subject_anonymous_certificate_valid to fail open, or PB_0000_No_Identity_Plus_anonymous_certificate
+ * to fail closed, or the last known profile of the certificate if it was seen recently, and the fixed outcome otherwise.
+ * 
+ * A last known profile is served to the request but not bound to the session, so the inquiry is made again on the next request.
+ */
+public class Degraded_Policy {
+    /**
+     * Answers with ER_1106_General_Identity_Plus_API_Problem, the behavior without a degraded policy
+     */
+    public static final Degraded_Policy FAIL = fixed(Outcome.ER_1106_General_Identity_Plus_API_Problem);
+
+    /**
+     * The outcome when there is no last known profile
+     */
+    public final Outcome outcome;
+
+    /**
+     * The last known profiles, by certificate serial number, null if they are not served
+     */
+    private final TTL_Cache<String, Identity_Profile> last_known;
+
+    private Degraded_Policy(Outcome outcome, TTL_Cache<String, Identity_Profile> last_known){
+        this.outcome = outcome;
+        this.last_known = last_known;
+    }
+
+    /**
+     * @param outcome
+     * @return a policy answering with the given outcome
+     */
+    public static Degraded_Policy fixed(Outcome outcome){
+        return new Degraded_Policy(outcome, null);
+    }
+
+    /**
+     * @param ttl_millis, how long a profile is remembered after it was received
+     * @param max_entries, the maximum number of profiles remembered
+     * @param otherwise, the outcome for certificates without a last known profile
+     * @return a policy serving the last known profiles
+     */
+    public static Degraded_Policy last_known(long ttl_millis, int max_entries, Outcome otherwise){
+        return new Degraded_Policy(otherwise, new TTL_Cache<String, Identity_Profile>(ttl_millis, max_entries));
+    }
+
+    /**
+     * Includes the hit ratio of the last known profiles in the metrics
+     * 
+     * @param metrics
+     */
+    public void register_cache(Metrics_Recorder metrics){
+        if(last_known != null) metrics.register_cache("last-known-profiles", last_known);
+    }
+
+    /**
+     * Remembers the response of a successful identity inquiry
+     * 
+     * @param serial_number
+     * @param response
+     */
+    public void remember(String serial_number, API_Response response){
+        if(last_known != null && response instanceof Identity_Profile) last_known.put(serial_number, (Identity_Profile)response);
+    }
+
+    /**
+     * @param serial_number
+     * @return the last known profile, or null if there is none
+     */
+    public Identity_Profile last_known(String serial_number){
+        return last_known == null ? null : last_known.get(serial_number);
+    }
+}
@@ -64,6 +64,9 @@ import identity.plus.api.communication.Personal_Data_Disclosure_Request;
 import identity.plus.api.communication.Trust;
 import identity.plus.api.communication.Unlock_Request;
 import identity.plus.api.communication.User_Secret;
+import identity.plus.api.resilience.Deadline;
+import identity.plus.api.resilience.Rejected_Call_Exception;
+import identity.plus.api.util.Log;
 /**
  * The Identity + API wrapper.
  * 
@@ -122,18 +125,53 @@ public class Identity_Plus_API {
      */
     public String device_id;
 
+    /**
+     * The identity inquiry must be answered before this deadline, otherwise it fails like any other API problem
+     * (see degrade)
+     */
+    protected final Deadline deadline;
+
     /**
      * Constructor, It constructs an API Channel
      * 
-     * Please see field descriptions and in-line comments for details
+     * Please see field descriptions and in-line comments for details. The identity inquiry is bounded by the current 
+     * deadline of the thread, if any (see Deadline.enter)
      * 
      * @param api_channel
      * @param request
      * @param skip_legacy_call
      */
     public Identity_Plus_API(API_Channel api_channel, HttpServletRequest request, boolean skip_legacy_call){
+        this(api_channel, request, skip_legacy_call, Deadline.current());
+    }
+
+    /**
+     * Constructor, with an explicit deadline for the identity inquiry, typically derived from the time the 
+     * servlet request is allowed to take
+     * 
+     * @param api_channel
+     * @param request
+     * @param skip_legacy_call
+     * @param deadline
+     */
+    public Identity_Plus_API(API_Channel api_channel, HttpServletRequest request, boolean skip_legacy_call, Deadline deadline){
+        this(api_channel, request, skip_legacy_call, deadline, null);
+    }
+
+    /**
+     * Constructor, for applications behind a TLS offloading proxy which forwards the full client certificate
+     * 
+     * @param api_channel
+     * @param request
+     * @param skip_legacy_call
+     * @param deadline
+     * @param certificate_header, the header the proxy forwards the client certificate in, it is only read if the X-TLS-Client-Serial header is absent. 
+     * The proxy must remove this header from the incoming requests. Null to only trust X-TLS-Client-Serial (see Client_Certificate_Identity.from_proxy_headers)
+     */
+    public Identity_Plus_API(API_Channel api_channel, HttpServletRequest request, boolean skip_legacy_call, Deadline deadline, String certificate_header){
         this.http_request = request;
         this.api_channel = api_channel;
+        this.deadline = deadline == null ? Deadline.NONE : deadline;
         this.skip_legacy_call = skip_legacy_call & request.isSecure();
 
         // extract the key from the presented certificate chain
@@ -142,10 +180,17 @@ public class Identity_Plus_API {
         if(request.isSecure()) get_id_from_certificate();
 
         // request was detected as secure but there is a reverse proxy in between
-        if(serial_number == null){
-                serial_number = request.getHeader("X-TLS-Client-Serial");
-                if(serial_number == null || serial_number.length() == 0)  log(3, "This is not a secure (SSL/TLS) connection. If you offloading TLS on a reverse proxy, please forward the client certificate serial number in the X-TLS-Client-Serial header", null);
-                else serial_number =  new BigInteger(serial_number, 16).toString();
+        if(serial_number == null) try{
+                Client_Certificate_Identity identity = Client_Certificate_Identity.from_proxy_headers(request, certificate_header);
+                if(identity == null)  log(3, "This is not a secure (SSL/TLS) connection. If you offloading TLS on a reverse proxy, please forward the client certificate serial number in the X-TLS-Client-Serial header", null);
+                else{
+                        serial_number = identity.serial_number;
+                        device_id = identity.device_id;
+                        if(identity.certificate != null) certificate = identity.certificate;
+                }
+        }
+        catch(IllegalArgumentException e){
+                log(2, "Malformed client certificate information forwarded by the reverse proxy", e);
         }
         
         if("".equals(serial_number)) serial_number = null;
@@ -184,17 +229,53 @@ public class Identity_Plus_API {
             }
             else try {
                 // the validation has not yet been done, let's do that
-                API_Response idp_response = api_channel.get(new Identity_Inquiry(serial_number, null, Identity_Plus_Utils.client_IP_address(request)));
-                update_cached_profile(idp_response);
-                outcome = this.identity_profile.outcome;
+                API_Response idp_response = inquire(serial_number);
+                if(idp_response != null){
+                    update_cached_profile(idp_response);
+                    api_channel.get_degraded_policy().remember(serial_number, idp_response);
+                }
             }
             catch(IOException e){
-                this.outcome = Outcome.ER_1106_General_Identity_Plus_API_Problem;
-                log(0, "Cannot make api call", e);
+                degrade(serial_number, e);
             }
         }
     }
     
+    /**
+     * Determines the outcome when the identity inquiry failed, according to the degraded policy of the API Channel.
+     * Override this method to handle the failure differently.
+     * 
+     * @param serial_number
+     * @param e, the reason the inquiry failed
+     */
+    protected void degrade(String serial_number, IOException e){
+        Degraded_Policy policy = api_channel.get_degraded_policy();
+        Identity_Profile last_known = policy.last_known(serial_number);
+
+        if(last_known != null){
+            // not bound to the session, we want a fresh answer as soon as the API is back
+            this.identity_profile = last_known;
+            this.outcome = last_known.outcome;
+        }
+        else this.outcome = policy.outcome;
+
+        // rejections are frequent while the API is down, they are only logged on request
+        if(e instanceof Rejected_Call_Exception) log(2, e.getMessage(), null);
+        else log(0, "Cannot make api call", e);
+    }
+    
+    /**
+     * Makes the identity inquiry for the given serial number. 
+     * Override this method to serve the answer from a different cache or to defer it. Returning null leaves the outcome undetermined.
+     * 
+     * @param serial_number
+     * @return the response of the identity+ API
+     * @throws IOException
+     */
+    protected API_Response inquire(String serial_number) throws IOException{
+        return api_channel.get(new Identity_Inquiry(serial_number, null, Identity_Plus_Utils.client_IP_address(http_request)), deadline);
+    }
+    
     /**
      * We update the cached profile. In case of subsequent calls such as adding trust or secret
      * the API will return an updated profile. We need to re-cache that
@@ -286,7 +367,7 @@ public class Identity_Plus_API {
 
             // we need to decrypt it with our private key because this data is encrypted with our public key,
             // which in this particular case is not so public, but rather only known by the Identity + service
-            byte[] decrypted_response = Identity_Plus_Utils.decrypt(response_data, api_channel.private_key);
+            byte[] decrypted_response = Identity_Plus_Utils.decrypt(response_data, api_channel.get_credentials().private_key);
             
             API_Response resp = API_Channel.decode_response(decrypted_response);
 
@@ -327,27 +408,28 @@ public class Identity_Plus_API {
         X509Certificate cert_chain[] = (X509Certificate[]) http_request.getAttribute("javax.servlet.request.X509Certificate");
         if(cert_chain != null && cert_chain.length > 0){
                 this.certificate = cert_chain[0];
-                this.serial_number = certificate.getSerialNumber().toString();
-                this.device_id = Identity_Plus_Utils.extract_dn_field(certificate.getSubjectX500Principal(), "CN");
+                Client_Certificate_Identity identity = Client_Certificate_Identity.of(certificate);
+                this.serial_number = identity.serial_number;
+                this.device_id = identity.device_id;
                 return;
         }
         // we should not get here if there is a certificate
         else if(cert_chain != null) for(X509Certificate cert : cert_chain){
-                String  anonymous_id = Identity_Plus_Utils.extract_identity_plus_anonymous_id(cert);
-                System.out.println("Identifying with: " + anonymous_id);
+                String  anonymous_id = Client_Certificate_Identity.of(cert).anonymous_id;
+                if(log_enabled(5)) log(5, "Identifying with: " + anonymous_id, null);
                 
                 if(anonymous_id != null){
                         this.certificate = cert;
                         this.serial_number = anonymous_id;
                         return;
                 }
-                else log(5, "Unknown certificate: " + cert.getSubjectX500Principal(), null);
+                else if(log_enabled(5)) log(5, "Unknown certificate: " + cert.getSubjectX500Principal(), null);
         }
         else log(3, "Unable to read client certificate...", null);
     }
 
     /**
-     * logs the message, by default to the standard output.
+     * logs the message through the configured Logger (see identity.plus.api.util.Log), by default to the standard output.
      * Override this method to redirect logging
      * 
      * @param verbosity_level
@@ -355,8 +437,18 @@ public class Identity_Plus_API {
      * @param exception
      */
     protected void log(int verbosity_level, String message, Throwable exception){
-        System.out.println(verbosity_level + ": " + message);
-        if(exception != null) exception.printStackTrace();
+        Log.log(verbosity_level, message, exception);
+    }
+    
+    /**
+     * tells whether a message of the verbosity level would be logged, it is checked before building messages that are expensive 
+     * to build. By default it asks the configured Logger, override it together with log(...) when redirecting logging
+     * 
+     * @param verbosity_level
+     * @return
+     */
+    protected boolean log_enabled(int verbosity_level){
+        return Log.is_enabled(verbosity_level);
     }
     
     /**
@@ -444,23 +536,39 @@ public class Identity_Plus_API {
     * @throws IOException
     */
     public void report_intrusion(Object_Of_Intrusion severity, String message, String additional_information) throws IOException{
+        API_Response response = api_channel.put(intrusion_report(severity, message, additional_information));
+        update_cached_profile(response);
+    }
+    
+   /**
+    * Creates an intrusion report from the given data and the data extracted from the request and hands it over to 
+    * the sink, which sends it in the background. It returns immediately, the cached profile is not updated
+    * 
+    * @param sink, the sink to send the report through
+    * @param severity, intrusion severity
+    * @param message, message to send to the user
+    * @param additional_information, additional information if any
+    * @return false if the sink dropped the report
+    */
+    public boolean report_intrusion(Intrusion_Report_Sink sink, Object_Of_Intrusion severity, String message, String additional_information){
+        return sink.submit(intrusion_report(severity, message, additional_information));
+    }
+    
+    private Intrusion_Report intrusion_report(Object_Of_Intrusion severity, String message, String additional_information){
         ArrayList<String> request_headers = new ArrayList<String>();
         for(Enumeration<String> header_names = http_request.getHeaderNames(); header_names.hasMoreElements(); ){
             String header = header_names.nextElement();
             request_headers.add(header + " = " + http_request.getHeader(header));
         }
         
-        API_Response response = api_channel.put(new Intrusion_Report(
+        return new Intrusion_Report(
                                 serial_number, 
                                 severity, 
                                 message, 
                                 http_request.getLocalAddr(), 
                                 http_request.getRequestURI(), 
                                 request_headers, 
-                                additional_information)
-                        );
-
-        update_cached_profile(response);
+                                additional_information);
     }
     
     /**
@@ -616,6 +724,18 @@ public class Identity_Plus_API {
             }
             else outcome = Outcome.ER_0005_Subject_user_name_was_never_associated;
     }
+
+    /**
+     * Records the trust with the aggregator, which delivers it in the background together with the other trust
+     * events of the user. It returns immediately, the cached profile is not updated
+     * 
+     * @param aggregator
+     * @param trust_type
+     */
+    public void put_trust(Trust_Aggregator aggregator, Object_Of_Trust trust_type){
+            if(identity_profile != null && identity_profile.local_user_name != null) aggregator.record(identity_profile.local_user_name, serial_number, trust_type);
+            else outcome = Outcome.ER_0005_Subject_user_name_was_never_associated;
+    }
     
     /**
      * Disconnects the local user whose profile is cached
@@ -0,0 +1,409 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Identity_Inquiry;
+import identity.plus.api.resilience.Deadline;
+import identity.plus.api.resilience.Endpoint_Balancer;
+import identity.plus.api.util.Log;
+import identity.plus.api.util.Path_Trie;
+import identity.plus.api.util.TTL_Cache;
+
+/**
+ * Servlet Filter that takes care of constructing the Identity_Plus_API for each request and, depending on the
+ * path, enforcing the action suggested by the identity+ outcome.
+ *
+ * The filter can be configured in the web.xml with the following init parameters:
+ *     endpoint, key-store, key-store-password, trust-store   the API Channel parameters (see API_Channel constructor)
+ *     endpoints             optionally, several endpoints to balance the calls over, as "url [weight=n] [region=name]" 
+ *                           separated by ";" or new lines (see Endpoint_Balancer)
+ *     region                the region of the application, endpoints in the same region are preferred
+ *     paths                 the path policies, as "pattern = policy" pairs separated by ";" or new lines,
+ *                           for example: /static/* = skip; /login = eager; /account/* = async
+ *     default-policy        the policy for paths not matching any pattern, lazy by default
+ *     decision-ttl          how long, in seconds, the decision for a certificate is cached, 300 by default. The decisions are
+ *                           cached by serial number only, the answer to the inquiry made from one client IP address is shared by
+ *                           the requests from all addresses presenting the same certificate within this time
+ *     decision-cache-size   maximum number of cached decisions, 100000 by default
+ *     ask-url               relative url to send visitors to when the outcome suggests asking for a certificate (eager paths only).
+ *                           If not specified, the request proceeds and the application decides
+ *     async-threads         the number of threads making background inquiries for async paths, 2 by default
+ *     skip-legacy-call      see the Identity_Plus_API constructor, false by default
+ *     certificate-header    the header a TLS offloading proxy forwards the full client certificate in, for example X-Forwarded-Client-Cert.
+ *                           Not set by default, only X-TLS-Client-Serial is trusted. Only set it if the proxy removes the header
+ *                           from incoming requests, the serial number header still wins if both are present
+ *     deadline              how long, in milliseconds, the identity+ calls made while handling a request may take in total,
+ *                           counted from when the request enters the filter. 0 (the default) for no deadline
+ *     prewarm               the number of connections to open, with a ping, before the filter takes requests. 0 (the default) for none
+ *     prewarm-deadline      how long, in milliseconds, the warm up may take, 10000 by default. A failed warm up is logged, not fatal
+ *
+ * Alternatively, the filter can be instantiated programmatically with an existing API_Channel and registered with
+ * ServletContext.addFilter, in which case only the policy related parameters are read.
+ *
+ * The application gets the Identity_Plus_API of the current request via Identity_Plus_Filter.identity(request).
+ */
+public class Identity_Plus_Filter implements Filter {
+    /**
+     * The request attribute under which the Identity_Plus_API of the request is stored
+     */
+    public static final String API_ATTRIBUTE = "identity.plus.api";
+
+    /**
+     * The request attribute under which the filter stores itself, so that lazy paths can construct the API on demand
+     */
+    public static final String FILTER_ATTRIBUTE = "identity.plus.filter";
+
+    private API_Channel api_channel;
+    private Path_Trie<Path_Policy> policies;
+    private TTL_Cache<String, API_Response> decisions;
+    private ThreadPoolExecutor background_inquiries;
+    private final Set<String> pending_inquiries = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private String ask_url;
+    private boolean skip_legacy_call;
+    private String certificate_header;
+    private long deadline_millis;
+
+    /**
+     * Constructor used by the servlet container, the API Channel is created from the init parameters
+     */
+    public Identity_Plus_Filter(){
+    }
+
+    /**
+     * Constructor for programmatic registration
+     *
+     * @param api_channel, the channel to make the calls through
+     */
+    public Identity_Plus_Filter(API_Channel api_channel){
+        this.api_channel = api_channel;
+    }
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        try{
+            if(api_channel == null) api_channel = new API_Channel(
+                                        config.getInitParameter("endpoint"),
+                                        config.getInitParameter("key-store"),
+                                        config.getInitParameter("key-store-password"),
+                                        config.getInitParameter("trust-store"));
+        }
+        catch(Exception e){
+            throw new ServletException("Unable to create the identity+ API channel", e);
+        }
+
+        String endpoints = config.getInitParameter("endpoints");
+        if(endpoints != null && endpoints.trim().length() > 0) api_channel.set_endpoints(Endpoint_Balancer.parse(endpoints, config.getInitParameter("region"), api_channel.metrics));
+
+        policies = compile_policies(config.getInitParameter("paths"), parameter(config, "default-policy", Path_Policy.lazy.name()));
+        decisions = new TTL_Cache<>(Long.parseLong(parameter(config, "decision-ttl", "300")) * 1000, Integer.parseInt(parameter(config, "decision-cache-size", "100000")));
+        api_channel.metrics.register_cache("filter-decisions", decisions);
+        ask_url = config.getInitParameter("ask-url");
+        skip_legacy_call = Boolean.parseBoolean(parameter(config, "skip-legacy-call", "false"));
+        certificate_header = config.getInitParameter("certificate-header");
+        if(certificate_header != null && certificate_header.trim().length() == 0) certificate_header = null;
+        deadline_millis = Long.parseLong(parameter(config, "deadline", "0"));
+        
+        int prewarm = Integer.parseInt(parameter(config, "prewarm", "0"));
+        if(prewarm > 0) try{
+            api_channel.prewarm(prewarm, Deadline.after(Long.parseLong(parameter(config, "prewarm-deadline", "10000")))).join();
+        }
+        catch(CompletionException e){
+            // not fatal, the calls will open their own connections
+            Log.log(1, "Unable to warm the identity+ API channel up", e.getCause());
+        }
+
+        int threads = Integer.parseInt(parameter(config, "async-threads", "2"));
+        background_inquiries = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1024), (Runnable r) -> {
+                Thread t = new Thread(r, "identity-plus-filter");
+                t.setDaemon(true);
+                return t;
+        });
+    }
+
+    private static String parameter(FilterConfig config, String name, String default_value){
+        String value = config.getInitParameter(name);
+        return value == null || value.trim().length() == 0 ? default_value : value.trim();
+    }
+
+    /**
+     * Compiles the "pattern = policy" list into the path trie
+     *
+     * @param paths
+     * @param default_policy
+     * @return
+     */
+    public static Path_Trie<Path_Policy> compile_policies(String paths, String default_policy){
+        Path_Trie<Path_Policy> trie = new Path_Trie<>();
+        trie.add("/*", Path_Policy.valueOf(default_policy));
+
+        if(paths != null) for(String entry : paths.split("[;\\n]")){
+            if(entry.trim().length() == 0) continue;
+
+            int idx = entry.indexOf('=');
+            if(idx < 0) throw new IllegalArgumentException("Path policies must be formatted as pattern = policy, found: " + entry);
+            trie.add(entry.substring(0, idx).trim(), Path_Policy.valueOf(entry.substring(idx +1).trim()));
+        }
+
+        return trie;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if(!(request instanceof HttpServletRequest)){
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletRequest http_request = (HttpServletRequest)request;
+        Path_Policy policy = policies.match(path(http_request));
+
+        if(policy == Path_Policy.skip){
+            chain.doFilter(request, response);
+            return;
+        }
+
+        http_request.setAttribute(FILTER_ATTRIBUTE, this);
+
+        if(deadline_millis <= 0){
+            filter(policy, http_request, response, chain);
+            return;
+        }
+
+        // the calls the application makes while handling the request are bounded as well
+        Deadline.Scope scope = Deadline.after(deadline_millis).enter();
+        try{
+            filter(policy, http_request, response, chain);
+        }
+        finally{
+            scope.close();
+        }
+    }
+
+    private void filter(Path_Policy policy, HttpServletRequest http_request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if(policy == Path_Policy.eager || policy == Path_Policy.async){
+            Identity_Plus_API api = policy == Path_Policy.eager ? new Cached_Identity_Plus_API(http_request) : new Async_Identity_Plus_API(http_request);
+            http_request.setAttribute(API_ATTRIBUTE, api);
+
+            if(!enforce(api, http_request, (HttpServletResponse)response)) return;
+        }
+
+        chain.doFilter(http_request, response);
+    }
+
+    /**
+     * The path the policies are matched against, without the context path. The servlet path and the path info are decoded 
+     * and normalized by the container, unlike the request URI, so encoded characters (/%6cogin), path parameters (/login;x) 
+     * or empty segments (//login) can't be used to get around a policy.
+     * 
+     * @param request
+     * @return
+     */
+    protected static String path(HttpServletRequest request){
+        String path_info = request.getPathInfo();
+        return path_info == null ? request.getServletPath() : request.getServletPath() + path_info;
+    }
+
+    /**
+     * Maps the suggested action of the outcome to the HTTP response.
+     * Override this method to customize the behavior.
+     *
+     * @param api
+     * @param request
+     * @param response
+     * @return true if the request should proceed to the application
+     * @throws IOException
+     */
+    protected boolean enforce(Identity_Plus_API api, HttpServletRequest request, HttpServletResponse response) throws IOException{
+        if(api.get_outcome() == null) return true;
+
+        switch(api.get_outcome().action){
+            case Redirect:
+                String validation_endpoint;
+                try{
+                    validation_endpoint = api_channel.certificate_validation_endpoint(api.return_here());
+                }
+                catch(RuntimeException e){
+                    // the return url is too long to be encrypted, the device can't be sent to fix its certificate
+                    api.log(2, "Unable to redirect to the certificate validation endpoint", e);
+                    response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                    return false;
+                }
+                
+                response.sendRedirect(validation_endpoint);
+                return false;
+
+            case Ask:
+                if(ask_url == null) return true;
+                response.sendRedirect(api.return_to(request.getContextPath() + ask_url));
+                return false;
+
+            case Evasive_Maneuver:
+                response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return false;
+
+            // Proceed, and also fail open on API problems, the outcome is available to the application
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Gets the Identity_Plus_API for the request. On lazy paths the API is constructed upon the first call.
+     *
+     * @param request
+     * @return the Identity_Plus_API, or null if the request was not handled by the filter (skipped)
+     */
+    public static Identity_Plus_API identity(HttpServletRequest request){
+        Identity_Plus_API api = Identity_Plus_API.class.cast(request.getAttribute(API_ATTRIBUTE));
+        if(api != null) return api;
+
+        Identity_Plus_Filter filter = Identity_Plus_Filter.class.cast(request.getAttribute(FILTER_ATTRIBUTE));
+        if(filter == null) return null;
+
+        api = filter.new Cached_Identity_Plus_API(request);
+        request.setAttribute(API_ATTRIBUTE, api);
+
+        return api;
+    }
+
+    /**
+     * @return the channel the filter makes the calls through
+     */
+    public API_Channel get_api_channel(){
+        return api_channel;
+    }
+
+    /**
+     * Forgets the cached decision for a serial number, for example after trust was added or the user was disconnected
+     *
+     * @param serial_number
+     */
+    public void forget(String serial_number){
+        decisions.remove(serial_number);
+    }
+
+    @Override
+    public void destroy() {
+        if(background_inquiries != null) background_inquiries.shutdownNow();
+        decisions.clear();
+    }
+
+    /**
+     * Decisions are only cached if they came from the identity+ API, problems with the API itself are not.
+     * The responses are immutable, so the cached one is shared by all the requests presenting the certificate,
+     * whatever their IP address
+     */
+    private void remember(String serial_number, API_Response response){
+        if(response != null && response.outcome.action != API_Action.Fix_API_Problem) decisions.put(serial_number, response);
+    }
+
+    /**
+     * Identity_Plus_API which serves the identity inquiry from the decision cache
+     */
+    private class Cached_Identity_Plus_API extends Identity_Plus_API {
+        private Cached_Identity_Plus_API(HttpServletRequest request){
+            super(Identity_Plus_Filter.this.api_channel, request, Identity_Plus_Filter.this.skip_legacy_call, Deadline.current(), Identity_Plus_Filter.this.certificate_header);
+        }
+
+        @Override
+        protected API_Response inquire(String serial_number) throws IOException {
+            API_Response response = decisions.get(serial_number);
+
+            if(response == null){
+                response = super.inquire(serial_number);
+                remember(serial_number, response);
+            }
+
+            return response;
+        }
+    }
+
+    /**
+     * Identity_Plus_API which does not wait for the identity inquiry if the decision is not cached,
+     * the outcome remains undetermined and the inquiry is made in the background
+     */
+    private class Async_Identity_Plus_API extends Identity_Plus_API {
+        private Async_Identity_Plus_API(HttpServletRequest request){
+            super(Identity_Plus_Filter.this.api_channel, request, Identity_Plus_Filter.this.skip_legacy_call, Deadline.current(), Identity_Plus_Filter.this.certificate_header);
+        }
+
+        @Override
+        protected API_Response inquire(String serial_number) throws IOException {
+            API_Response response = decisions.get(serial_number);
+            if(response != null || !pending_inquiries.add(serial_number)) return response;
+
+            // the request will be gone by the time the inquiry is made, so we take what we need from it now
+            String ip_address = Identity_Plus_Utils.client_IP_address(http_request);
+
+            try{
+                background_inquiries.execute(() -> {
+                        try{
+                            remember(serial_number, api_channel.get(new Identity_Inquiry(serial_number, null, ip_address)));
+                        }
+                        catch(IOException e){
+                            log(1, "Background identity inquiry failed", e);
+                        }
+                        finally{
+                            pending_inquiries.remove(serial_number);
+                        }
+                });
+            }
+            catch(RejectedExecutionException e){
+                // too many inquiries queued up, a later request will try again
+                pending_inquiries.remove(serial_number);
+            }
+
+            return null;
+        }
+    }
+}
@@ -32,6 +32,9 @@
  */
 package identity.plus.api;
 
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -49,9 +52,6 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import javax.naming.InvalidNameException;
-import javax.naming.ldap.LdapName;
-import javax.naming.ldap.Rdn;
 import javax.security.auth.x500.X500Principal;
 import javax.servlet.http.HttpServletRequest;
 /**
@@ -94,17 +94,108 @@ public class Identity_Plus_Utils {
          * @return
          */
         public static String extract_dn_field(X500Principal principal, String field){
-                try{
-                        for(Rdn rdn: new LdapName(principal.getName()).getRdns()){
-                                if(rdn.getType().equalsIgnoreCase(field)) return rdn.getValue().toString();
-                        }
+                return extract_dn_field(principal.getName(), field);
+        }
 
-                        return null;
+        /**
+         * Extracts a field from an RFC 2253 formatted distinguished name in a single pass, without
+         * building an LdapName. Escaped characters (\, \+ \" and hex pairs) and quoted values are unescaped,
+         * hex encoded values (#04...) are returned as they are.
+         *  
+         * @param rfc2253_name, the name as returned by X500Principal.getName()
+         * @param field (can be CN, C, O, OU, ST, etc.)
+         * @return the value of the rightmost occurrence of the field (the most significant RDN comes last in RFC 2253 order,
+         * as with the LdapName based lookup this replaces), or null if there is none
+         */
+        public static String extract_dn_field(String rfc2253_name, String field){
+                int len = rfc2253_name.length();
+                int i = 0;
+                String found = null;
+                
+                while(i < len){
+                        // attribute type, up to the equal sign
+                        int type_start = i;
+                        while(i < len && rfc2253_name.charAt(i) != '=') i++;
+                        if(i == len) throw new IllegalArgumentException("Malformed distinguished name: " + rfc2253_name);
+                        
+                        int type_end = i;
+                        while(type_end > type_start && rfc2253_name.charAt(type_end -1) == ' ') type_end--;
+                        while(type_start < type_end && rfc2253_name.charAt(type_start) == ' ') type_start++;
+                        boolean match = type_end - type_start == field.length() && rfc2253_name.regionMatches(true, type_start, field, 0, field.length());
+                        
+                        // attribute value, up to an unescaped separator
+                        i++;
+                        StringBuilder unescaped = null;
+                        int value_start = i;
+                        boolean quoted = false;
+                        
+                        for(; i < len; i++){
+                                char c = rfc2253_name.charAt(i);
+                                
+                                if(c == '"'){
+                                        quoted = !quoted;
+                                        if(match && unescaped == null) unescaped = new StringBuilder(rfc2253_name.substring(value_start, i));
+                                        continue;
+                                }
+                                else if(!quoted && (c == ',' || c == '+' || c == ';')) break;
+                                else if(c == '\\' && i +1 < len){
+                                        if(match && unescaped == null) unescaped = new StringBuilder(rfc2253_name.substring(value_start, i));
+                                        
+                                        char next = rfc2253_name.charAt(++i);
+                                        if(i +1 < len && Character.digit(next, 16) >= 0 && Character.digit(rfc2253_name.charAt(i +1), 16) >= 0){
+                                                // hex pair, may be part of a multi byte UTF-8 sequence
+                                                ByteArrayOutputStream utf8 = new ByteArrayOutputStream();
+                                                utf8.write(Character.digit(next, 16) << 4 | Character.digit(rfc2253_name.charAt(++i), 16));
+                                                while(i +3 < len && rfc2253_name.charAt(i +1) == '\\' && Character.digit(rfc2253_name.charAt(i +2), 16) >= 0 && Character.digit(rfc2253_name.charAt(i +3), 16) >= 0){
+                                                        utf8.write(Character.digit(rfc2253_name.charAt(i +2), 16) << 4 | Character.digit(rfc2253_name.charAt(i +3), 16));
+                                                        i += 3;
+                                                }
+                                                if(match) unescaped.append(new String(utf8.toByteArray(), StandardCharsets.UTF_8));
+                                        }
+                                        else if(match) unescaped.append(next);
+                                        
+                                        continue;
+                                }
+                                
+                                if(unescaped != null) unescaped.append(c);
+                        }
+                        
+                        if(match) found = unescaped != null ? unescaped.toString() : rfc2253_name.substring(value_start, i).trim();
+                        
+                        // skip the separator
+                        i++;
                 }
-                catch(InvalidNameException e){
-                        // this should not happen because the name has already been checked, coming from the X500Principal Object
-                        throw new RuntimeException(e);
+                
+                return found;
+        }
+
+        /**
+         * Converts a hexadecimal certificate serial number, as forwarded by TLS offloading proxies, to its decimal representation.
+         * Leading zeros and colon separators are ignored. Serial numbers that fit into 64 bits, which are the vast majority, are
+         * converted without going through BigInteger.
+         * 
+         * @param hex, the serial number in hexadecimal notation
+         * @return the serial number as a decimal string
+         * @throws NumberFormatException if the string is not a hexadecimal number
+         */
+        public static String hex_to_decimal(String hex){
+                long value = 0;
+                int digits = 0;
+                
+                for(int i = 0; i < hex.length(); i++){
+                        char c = hex.charAt(i);
+                        if(c == ':') continue;
+                        
+                        int digit = Character.digit(c, 16);
+                        if(digit < 0) throw new NumberFormatException("Not a hexadecimal number: " + hex);
+                        if(digits == 0 && digit == 0) continue;
+                        
+                        // more than 64 bits, let BigInteger handle it
+                        if(++digits > 16) return new BigInteger(hex.replace(":", ""), 16).toString();
+                        value = value << 4 | digit;
                 }
+                
+                return Long.toUnsignedString(value);
         }
 
         public static byte[] section(byte[] src, int pos, int len){
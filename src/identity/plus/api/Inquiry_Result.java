@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.IOException;
+
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Identity_Inquiry;
+import identity.plus.api.communication.Identity_Profile;
+
+/**
+ * The result of one identity inquiry within a batch (see API_Channel.get(Iterable, int, Consumer)).
+ * Either the response or the error is set, never both.
+ */
+public class Inquiry_Result {
+    /**
+     * The position of the inquiry in the batch, counting from 0
+     */
+    public final int index;
+
+    public final Identity_Inquiry inquiry;
+
+    /**
+     * The answer of the identity+ API, an Identity_Profile or a Simple_Response if the certificate is not known
+     * or the inquiry was refused. Null if the call failed
+     */
+    public final API_Response response;
+
+    /**
+     * Why the call failed, null if it succeeded
+     */
+    public final Exception error;
+
+    public Inquiry_Result(int index, Identity_Inquiry inquiry, API_Response response, Exception error){
+        this.index = index;
+        this.inquiry = inquiry;
+        this.response = response;
+        this.error = error;
+    }
+
+    /**
+     * @return true if the identity+ API answered, regardless of the outcome
+     */
+    public boolean succeeded(){
+        return error == null;
+    }
+
+    /**
+     * @return the identity profile, or null if the call failed or the API answered with something else
+     */
+    public Identity_Profile profile(){
+        return response instanceof Identity_Profile ? (Identity_Profile)response : null;
+    }
+
+    /**
+     * @return the response
+     * @throws IOException if the call failed
+     */
+    public API_Response get() throws IOException{
+        if(error instanceof IOException) throw (IOException)error;
+        else if(error != null) throw new IOException(error);
+
+        return response;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Intrusion_Report;
+import identity.plus.api.communication.Outcome;
+import identity.plus.api.util.Log;
+import identity.plus.api.util.TTL_Cache;
+
+/**
+ * Fire and forget intrusion reporting. Reports are handed over to a background thread which sends them through 
+ * the API channel, so that the code reacting to an attack is not slowed down by the API call.
+ * 
+ * Reports are coalesced per certificate: while a report is pending for a certificate, further reports for the same
+ * certificate only raise its severity, and once identity+ accepted a report on a certificate, further reports are ignored for
+ * a while (identity+ would answer with ER_0007_An_intrusion_was_already_reported_on_this_certificate anyway). Reports which
+ * could not be sent are not remembered, the next report on the certificate is sent.
+ * 
+ * The number of pending reports is bounded. When full, the drop policy decides whether the new or the oldest 
+ * report is dropped. Pending reports are sent before the sink is closed, as well as at JVM shutdown.
+ */
+public class Intrusion_Report_Sink implements AutoCloseable {
+    /**
+     * What to do when a report arrives and the sink is full
+     */
+    public enum Drop_Policy {
+        /**
+         * The new report is dropped
+         */
+        drop_newest,
+
+        /**
+         * The oldest pending report is dropped to make room for the new one
+         */
+        drop_oldest
+    }
+
+    private final API_Channel api_channel;
+    private final Drop_Policy drop_policy;
+    private final int capacity;
+    private final long linger_nanos;
+
+    // certificates in arrival order, the reports themselves are in pending
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Intrusion_Report> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final TTL_Cache<String, Boolean> reported;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Thread sender;
+    private final Thread shutdown_hook;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor with defaults: 10000 pending reports, drop the newest, 100ms coalescing window, certificates are
+     * remembered for one hour after they were reported
+     * 
+     * @param api_channel
+     */
+    public Intrusion_Report_Sink(API_Channel api_channel){
+        this(api_channel, 10000, Drop_Policy.drop_newest, 100, 3600000);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param api_channel, the channel to send the reports through
+     * @param capacity, the maximum number of pending reports
+     * @param drop_policy, what to do when the sink is full
+     * @param linger_millis, how long the sender waits after the first report of a batch, so that duplicates can be coalesced
+     * @param remember_millis, how long a reported certificate is remembered, further reports on it are ignored in this time
+     */
+    public Intrusion_Report_Sink(API_Channel api_channel, int capacity, Drop_Policy drop_policy, long linger_millis, long remember_millis){
+        if(capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+
+        this.api_channel = api_channel;
+        this.capacity = capacity;
+        this.drop_policy = drop_policy;
+        this.linger_nanos = linger_millis * 1000000L;
+        this.reported = new TTL_Cache<>(remember_millis, Math.max(capacity, 10000));
+
+        api_channel.metrics.register_cache("reported-intrusions", reported);
+
+        sender = new Thread(this::send_loop, "identity-plus-intrusion-reports");
+        sender.setDaemon(true);
+        sender.start();
+
+        shutdown_hook = new Thread(() -> close_quietly(5000), "identity-plus-intrusion-reports-flush");
+        Runtime.getRuntime().addShutdownHook(shutdown_hook);
+    }
+
+    /**
+     * Queues the report for sending, it never blocks
+     * 
+     * @param report
+     * @return false if the report was dropped, because the sink is full or closed, true if it was queued or coalesced
+     */
+    public boolean submit(Intrusion_Report report){
+        if(closed){
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        submitted.incrementAndGet();
+        String serial_number = report.intruding_certificate_uid;
+
+        if(reported.get(serial_number) != null){
+            coalesced.incrementAndGet();
+            return true;
+        }
+
+        if(pending.putIfAbsent(serial_number, report) != null){
+            // only the most severe of the pending reports is kept
+            pending.computeIfPresent(serial_number, (String k, Intrusion_Report previous) -> report.severity.code > previous.severity.code ? report : previous);
+            coalesced.incrementAndGet();
+            return true;
+        }
+
+        if(size.incrementAndGet() > capacity){
+            if(drop_policy == Drop_Policy.drop_oldest && drop_oldest()){
+                // made room
+            }
+            else{
+                size.decrementAndGet();
+                // by key, a concurrent submit may have replaced the report with a more severe one
+                pending.remove(serial_number);
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+
+        queue.add(serial_number);
+        LockSupport.unpark(sender);
+
+        return true;
+    }
+
+    private boolean drop_oldest(){
+        String oldest = queue.poll();
+        if(oldest == null) return false;
+
+        pending.remove(oldest);
+        size.decrementAndGet();
+        dropped.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Waits until all the pending reports were sent
+     * 
+     * @param timeout_millis
+     * @return true if everything was sent, false if the timeout expired first
+     */
+    public boolean flush(long timeout_millis){
+        long deadline = System.nanoTime() + timeout_millis * 1000000L;
+
+        while(size.get() > 0){
+            if(deadline - System.nanoTime() <= 0) return false;
+            LockSupport.unpark(sender);
+            LockSupport.parkNanos(this, 1000000);
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops accepting reports, sends the pending ones (waiting up to 5 seconds) and stops the sender
+     */
+    @Override
+    public void close(){
+        close_quietly(5000);
+
+        try{
+            Runtime.getRuntime().removeShutdownHook(shutdown_hook);
+        }
+        catch(IllegalStateException e){
+            // already shutting down
+        }
+    }
+
+    private void close_quietly(long timeout_millis){
+        closed = true;
+        if(!flush(timeout_millis)) Log.log(1, size.get() + " intrusion reports could not be sent before closing", null);
+        sender.interrupt();
+    }
+
+    private void send_loop(){
+        while(!Thread.currentThread().isInterrupted()){
+            if(queue.isEmpty()){
+                LockSupport.park(this);
+                continue;
+            }
+
+            // give duplicates a chance to arrive, unless we are flushing
+            if(!closed && linger_nanos > 0) LockSupport.parkNanos(this, linger_nanos);
+
+            for(String serial_number; (serial_number = queue.poll()) != null; ){
+                Intrusion_Report report = pending.remove(serial_number);
+
+                // a certificate is only remembered once identity+ has the report, so failed reports can be submitted again
+                if(report != null && send(report)) reported.put(serial_number, Boolean.TRUE);
+
+                // every queued certificate accounts for one unit of size
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Sends one report, override this method to handle the responses differently
+     * 
+     * @param report
+     * @return true if identity+ has the report, it accepted it or it was already reported, false if it could not be sent or was refused
+     */
+    protected boolean send(Intrusion_Report report){
+        try{
+            API_Response response = api_channel.put(report);
+
+            if(response.outcome == Outcome.ER_0007_An_intrusion_was_already_reported_on_this_certificate || response.outcome.is_ok()){
+                sent.incrementAndGet();
+                return true;
+            }
+            else{
+                failed.incrementAndGet();
+                Log.log(2, "Intrusion report on " + report.intruding_certificate_uid + " was refused: " + response.outcome, null);
+                return false;
+            }
+        }
+        catch(IOException | RuntimeException e){
+            failed.incrementAndGet();
+            Log.log(1, "Unable to send intrusion report on " + report.intruding_certificate_uid, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of reports waiting to be sent
+     */
+    public int pending(){
+        return size.get();
+    }
+
+    /**
+     * @return the number of reports submitted, including the coalesced ones
+     */
+    public long submitted(){
+        return submitted.get();
+    }
+
+    /**
+     * @return the number of reports merged into another report, or ignored because the certificate was already reported
+     */
+    public long coalesced(){
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of reports dropped because the sink was full or closed
+     */
+    public long dropped(){
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of reports accepted by identity+
+     */
+    public long sent(){
+        return sent.get();
+    }
+
+    /**
+     * @return the number of reports that could not be sent, or were refused
+     */
+    public long failed(){
+        return failed.get();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Message_Delivery_Request;
+import identity.plus.api.communication.Message_Delivery_Response;
+import identity.plus.api.util.Log;
+
+/**
+ * Delivers the same message to a large number of recipients. The recipients are split into chunks, one 
+ * Message_Delivery_Request per chunk, and the chunks are sent concurrently.
+ * 
+ * The thumbnail is base64 encoded once per message and the encoded form is shared by all the chunks, instead of being
+ * encoded again for each of them. The recipients are read lazily and at most parallelism chunks are held at any time, 
+ * so the memory used depends on the chunk size, not on the size of the audience.
+ */
+public class Message_Delivery_Engine {
+    /**
+     * The aggregated result of a delivery
+     */
+    public static class Delivery_Summary {
+        public long chunks;
+        public long recipients;
+
+        /**
+         * Recipients identity+ could not deliver to (see Message_Delivery_Response.failed_recipients)
+         */
+        public long failed_recipients;
+
+        /**
+         * Recipients of the chunks for which the call failed or which were refused altogether
+         */
+        public long undelivered_recipients;
+
+        public long failed_chunks;
+
+        /**
+         * The message references of the delivered chunks
+         */
+        public final List<BigInteger> message_references = new ArrayList<>();
+
+        /**
+         * @return the number of recipients the message was delivered to
+         */
+        public long delivered(){
+            return recipients - failed_recipients - undelivered_recipients;
+        }
+    }
+
+    private final API_Channel api_channel;
+    private final int chunk_size;
+    private final int parallelism;
+
+    /**
+     * Constructor
+     * 
+     * @param api_channel, the channel to send the messages through
+     * @param chunk_size, the maximum number of recipients per request
+     * @param parallelism, the number of concurrent requests
+     */
+    public Message_Delivery_Engine(API_Channel api_channel, int chunk_size, int parallelism){
+        if(chunk_size < 1 || parallelism < 1) throw new IllegalArgumentException("Chunk size and parallelism must be at least 1");
+
+        this.api_channel = api_channel;
+        this.chunk_size = chunk_size;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Delivers the message to all the recipients, it returns once all chunks were sent
+     * 
+     * @param recipients, the local user names of the recipients
+     * @param subject_line
+     * @param impact
+     * @param thumbnail, PNG or JPG image, can be null
+     * @param brief
+     * @param url
+     * @param action
+     * @param expiry, can be null
+     * @return
+     * @throws InterruptedException if the calling thread was interrupted, the chunks not yet sent are abandoned
+     */
+    public Delivery_Summary deliver(Iterable<String> recipients, String subject_line, String impact, byte[] thumbnail, String brief, String url, String action, Date expiry) throws InterruptedException{
+        // the same string instance goes into every chunk, it is written as the thumbnail field
+        String encoded_thumbnail = thumbnail == null || thumbnail.length == 0 ? null : Base64.getEncoder().encodeToString(thumbnail);
+
+        Delivery_Summary summary = new Delivery_Summary();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, (Runnable r) -> {
+                Thread t = new Thread(r, "identity-plus-message-delivery");
+                t.setDaemon(true);
+                return t;
+        });
+        ExecutorCompletionService<Chunk> completed = new ExecutorCompletionService<>(workers);
+        int in_flight = 0;
+
+        try{
+            Iterator<String> i = recipients.iterator();
+            while(i.hasNext()){
+                List<String> chunk = new ArrayList<>(chunk_size);
+                while(chunk.size() < chunk_size && i.hasNext()) chunk.add(i.next());
+
+                if(in_flight == parallelism){
+                    collect(completed.take(), summary);
+                    in_flight--;
+                }
+
+                Message_Delivery_Request request = new Message_Delivery_Request(Collections.unmodifiableList(chunk), subject_line, impact, null, brief, url, action, expiry);
+                if(encoded_thumbnail != null) request.custom("thumbnail", encoded_thumbnail);
+
+                completed.submit(() -> send(request));
+                in_flight++;
+                summary.chunks++;
+                summary.recipients += chunk.size();
+            }
+
+            for(; in_flight > 0; in_flight--) collect(completed.take(), summary);
+        }
+        finally{
+            workers.shutdownNow();
+        }
+
+        return summary;
+    }
+
+    private static final class Chunk{
+        private final Message_Delivery_Request request;
+        private final API_Response response;
+        private final Exception error;
+
+        private Chunk(Message_Delivery_Request request, API_Response response, Exception error){
+            this.request = request;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    private Chunk send(Message_Delivery_Request request){
+        try{
+            return new Chunk(request, api_channel.put(request), null);
+        }
+        catch(IOException | RuntimeException e){
+            return new Chunk(request, null, e);
+        }
+    }
+
+    private void collect(Future<Chunk> future, Delivery_Summary summary) throws InterruptedException{
+        Chunk c;
+        try{
+            c = future.get();
+        }
+        catch(ExecutionException e){
+            // the tasks catch their own exceptions, only errors end up here
+            throw new RuntimeException(e.getCause());
+        }
+
+        if(c.response instanceof Message_Delivery_Response){
+            Message_Delivery_Response r = (Message_Delivery_Response)c.response;
+            if(r.message_reference != null) summary.message_references.add(r.message_reference);
+            if(r.failed_recipients != null) summary.failed_recipients += r.failed_recipients.size();
+        }
+        else if(c.error != null || !c.response.outcome.is_ok()){
+            summary.failed_chunks++;
+            summary.undelivered_recipients += c.request.recipients.size();
+        }
+
+        chunk_delivered(c.request.recipients, c.response, c.error);
+    }
+
+    /**
+     * Called on the thread making the delivery once a chunk was sent, override it to keep track of individual
+     * recipients (to retry the failed ones for example). By default failures are logged
+     * 
+     * @param recipients, the recipients of the chunk
+     * @param response, a Message_Delivery_Response, or Simple_Response if the chunk was refused, null if the call failed
+     * @param error, null if the call succeeded
+     */
+    protected void chunk_delivered(List<String> recipients, API_Response response, Exception error){
+        if(error != null) Log.log(2, "Unable to deliver message to " + recipients.size() + " recipients", error);
+        else if(!(response instanceof Message_Delivery_Response) && !response.outcome.is_ok()) Log.log(2, "Message delivery to " + recipients.size() + " recipients was refused: " + response.outcome, null);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ThreadLocalRandom;
+
+import identity.plus.api.communication.API_Response;
+
+/**
+ * When and how an API_Channel renews its certificate before it expires.
+ *
+ * The renewal is due once a share of the validity period of the certificate has passed (2/3 by default), moved
+ * by a random jitter so that a fleet of nodes started together, with certificates issued together, does not renew
+ * all at once. A failed renewal is tried again after a while, with jitter as well, until it succeeds or the certificate
+ * expires. The renewed identity is turned into credentials in memory and the channel is rotated to them, the
+ * key store file is not changed.
+ */
+public class Renewal_Policy {
+    /**
+     * Obtains a new identity from identity+
+     */
+    @FunctionalInterface
+    public interface Renewer{
+        /**
+         * @param channel, the channel to renew the identity with
+         * @return a Service_Identity or a Service_Agent_Identity, any other response is a failed renewal
+         * @throws IOException
+         */
+        API_Response renew(API_Channel channel) throws IOException;
+    }
+
+    public final Renewer renewer;
+
+    /**
+     * The share of the validity period after which the certificate is renewed, between 0 and 1
+     */
+    public final double renew_at;
+
+    /**
+     * The largest jitter, as a share of the validity period, the renewal is moved earlier or later by up to this much
+     */
+    public final double jitter;
+
+    /**
+     * How long to wait before trying again after a failed renewal, in milliseconds
+     */
+    public final long retry_millis;
+
+    /**
+     * Constructor
+     *
+     * @param renewer, obtains the new identity, see service_identity and service_agent_identity
+     * @param renew_at, the share of the validity period after which to renew, for example 0.66
+     * @param jitter, the largest jitter as a share of the validity period, for example 0.05
+     * @param retry_millis, how long to wait after a failure
+     */
+    public Renewal_Policy(Renewer renewer, double renew_at, double jitter, long retry_millis){
+        if(renewer == null) throw new NullPointerException("The renewer must be specified");
+        if(renew_at <= 0 || renew_at >= 1 || jitter < 0 || jitter >= Math.min(renew_at, 1 - renew_at) || retry_millis <= 0) throw new IllegalArgumentException("Renewal must be due within the validity period and the retry delay must be positive");
+
+        this.renewer = renewer;
+        this.renew_at = renew_at;
+        this.jitter = jitter;
+        this.retry_millis = retry_millis;
+    }
+
+    /**
+     * @return renews the service identity (issue_service_identity) after 2/3 of its validity, with a 5% jitter, failures are retried after 10 minutes
+     */
+    public static Renewal_Policy service_identity(){
+        return service_identity(null);
+    }
+
+    /**
+     * @param service_domain
+     * @return renews the identity of the service domain after 2/3 of its validity, with a 5% jitter, failures are retried after 10 minutes
+     */
+    public static Renewal_Policy service_identity(String service_domain){
+        return new Renewal_Policy((API_Channel channel) -> channel.issue_service_identity(service_domain, true), 0.66, 0.05, 600000);
+    }
+
+    /**
+     * @param agent_name
+     * @return renews the service agent identity (issue_service_agent_identity) after 2/3 of its validity, with a 5% jitter, failures are retried after 10 minutes
+     */
+    public static Renewal_Policy service_agent_identity(String agent_name){
+        return new Renewal_Policy((API_Channel channel) -> channel.issue_service_agent_identity(agent_name), 0.66, 0.05, 600000);
+    }
+
+    /**
+     * @param certificate
+     * @param now, in milliseconds since the epoch
+     * @return how long to wait until the renewal of the certificate, in milliseconds, a random share of the retry delay if it is already due
+     */
+    public long delay_millis(X509Certificate certificate, long now){
+        long not_before = certificate.getNotBefore().getTime();
+        long validity = certificate.getNotAfter().getTime() - not_before;
+
+        long due = not_before + (long)(validity * (renew_at + jitter * (2 * ThreadLocalRandom.current().nextDouble() -1)));
+
+        // overdue, for example after a restart with an old certificate, the fleet is spread over the retry delay
+        if(due <= now) return (long)(retry_millis * ThreadLocalRandom.current().nextDouble());
+        else return due - now;
+    }
+
+    /**
+     * @return how long to wait before trying again after a failure, in milliseconds, between half and one and a half times the retry delay
+     */
+    public long retry_delay_millis(){
+        return (long)(retry_millis * (0.5 + ThreadLocalRandom.current().nextDouble()));
+    }
+}
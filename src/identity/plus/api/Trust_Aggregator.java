@@ -0,0 +1,423 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Trust;
+import identity.plus.api.util.Log;
+
+/**
+ * Write-behind aggregation of trust events. Instead of one Trust request per awarded token, made in the request thread,
+ * the events are counted per local user, certificate and type of trust and sent by a background thread.
+ * 
+ * identity+ records one award per Trust request and has no field for a count (unknown fields are ignored), so the
+ * aggregation is lossless rather than compressed: a combination with N pending events is delivered as N Trust requests.
+ * What is saved is the work in the request thread, and the requests of one combination go out back to back over a warm connection.
+ * 
+ * Counting is a striped (LongAdder) increment, it never blocks. The counts are flushed by a background thread periodically
+ * or as soon as enough events accumulated. Delivery is at least once: counts are only considered delivered once identity+
+ * answered them, the ones that could not be sent (I/O errors) are retried at the next flush. A refusal is final, the remaining
+ * events of the combination are dropped and counted as trust.refused in the metrics of the channel.
+ * 
+ * Optionally, the undelivered counts are written to a spool file before each flush and re-loaded at start, so that they
+ * survive a restart. A crash between the delivery and the rewrite of the spool can cause counts to be sent twice, events
+ * recorded after the last flush are not in the spool.
+ */
+public class Trust_Aggregator implements AutoCloseable {
+    /**
+     * The spool field carrying the number of undelivered events of a combination
+     */
+    public static final String OCCURRENCES_FIELD = "occurrences";
+
+    private static final class Key{
+        private final String local_user_name;
+        private final String serial_number;
+        private final Object_Of_Trust trust_type;
+        private final int hash;
+
+        private Key(String local_user_name, String serial_number, Object_Of_Trust trust_type){
+            this.local_user_name = local_user_name;
+            this.serial_number = serial_number;
+            this.trust_type = trust_type;
+            this.hash = Objects.hash(local_user_name, serial_number, trust_type);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return trust_type == k.trust_type && Objects.equals(local_user_name, k.local_user_name) && Objects.equals(serial_number, k.serial_number);
+        }
+    }
+
+    /**
+     * The events are only ever added, what was delivered is remembered separately (by the flusher thread), 
+     * so no event is lost to a concurrent reset
+     */
+    private static final class Counter{
+        private final LongAdder events = new LongAdder();
+        private long delivered = 0;
+        private int idle_flushes = 0;
+    }
+
+    private final API_Channel api_channel;
+    private final long interval_nanos;
+    private final long threshold;
+    private final File spool;
+
+    private final ConcurrentHashMap<Key, Counter> counters = new ConcurrentHashMap<>();
+    // counters removed from the map, kept for another flush in case an increment raced with the removal
+    private List<Map.Entry<Key, Counter>> retired = new ArrayList<>();
+    private final LongAdder undelivered = new LongAdder();
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failed_requests = new AtomicLong();
+
+    private final Thread flusher;
+    private final Thread shutdown_hook;
+    private volatile boolean closed = false;
+    private volatile boolean flush_requested = false;
+    private volatile long flushes = 0;
+
+    /**
+     * Constructor
+     * 
+     * @param api_channel, the channel to send the Trust requests through
+     * @param interval_millis, how often the counts are flushed
+     * @param threshold, the number of undelivered events which triggers an early flush
+     * @param spool, the file to keep the undelivered counts in, null to keep them only in memory
+     * @throws IOException if the spool file exists and can not be read
+     */
+    public Trust_Aggregator(API_Channel api_channel, long interval_millis, long threshold, File spool) throws IOException{
+        this.api_channel = api_channel;
+        this.interval_nanos = interval_millis * 1000000L;
+        this.threshold = threshold;
+        this.spool = spool;
+
+        if(spool != null && spool.exists()) load_spool();
+
+        flusher = new Thread(this::flush_loop, "identity-plus-trust-aggregator");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        shutdown_hook = new Thread(this::close_quietly, "identity-plus-trust-aggregator-flush");
+        Runtime.getRuntime().addShutdownHook(shutdown_hook);
+    }
+
+    /**
+     * Records one trust event, it returns immediately
+     * 
+     * @param local_user_name
+     * @param serial_number, can be null
+     * @param trust_type
+     */
+    public void record(String local_user_name, String serial_number, Object_Of_Trust trust_type){
+        record(local_user_name, serial_number, trust_type, 1);
+    }
+
+    /**
+     * Records a number of trust events of the same kind, it returns immediately
+     * 
+     * @param local_user_name
+     * @param serial_number, can be null
+     * @param trust_type
+     * @param events
+     */
+    public void record(String local_user_name, String serial_number, Object_Of_Trust trust_type, long events){
+        if(local_user_name == null) throw new NullPointerException("Local user name must be specified");
+        if(closed) throw new IllegalStateException("The trust aggregator is closed");
+
+        counters.computeIfAbsent(new Key(local_user_name, serial_number, trust_type == null ? Object_Of_Trust.random : trust_type), (Key k) -> new Counter()).events.add(events);
+        undelivered.add(events);
+        recorded.addAndGet(events);
+
+        // checking the threshold costs a sum over the stripes, it is enough to do it now and then
+        if((ThreadLocalRandom.current().nextInt() & 63) == 0 && undelivered.sum() >= threshold){
+            flush_requested = true;
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    /**
+     * Requests a flush and waits for it to complete
+     * 
+     * @param timeout_millis
+     * @return true if a flush completed within the timeout, it does not mean everything was delivered
+     */
+    public boolean flush(long timeout_millis){
+        long deadline = System.nanoTime() + timeout_millis * 1000000L;
+        long target = flushes + 2;
+
+        flush_requested = true;
+        while(flushes < target){
+            if(deadline - System.nanoTime() <= 0) return false;
+            LockSupport.unpark(flusher);
+            LockSupport.parkNanos(this, 1000000);
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops accepting events and flushes the undelivered ones (waiting up to 5 seconds)
+     */
+    @Override
+    public void close(){
+        close_quietly();
+
+        try{
+            Runtime.getRuntime().removeShutdownHook(shutdown_hook);
+        }
+        catch(IllegalStateException e){
+            // already shutting down
+        }
+    }
+
+    private void close_quietly(){
+        if(closed) return;
+
+        closed = true;
+        flush(5000);
+        flusher.interrupt();
+
+        if(undelivered.sum() > 0) Log.log(1, undelivered.sum() + " trust events were not delivered" + (spool != null ? ", they are kept in " + spool : ""), null);
+    }
+
+    private void flush_loop(){
+        long next = System.nanoTime() + interval_nanos;
+
+        while(!Thread.currentThread().isInterrupted()){
+            long wait = next - System.nanoTime();
+            if(wait > 0 && !flush_requested){
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            flush_requested = false;
+            next = System.nanoTime() + interval_nanos;
+
+            try{
+                flush_once();
+            }
+            catch(RuntimeException e){
+                Log.log(1, "Trust aggregator flush failed", e);
+            }
+
+            flushes++;
+        }
+    }
+
+    private void flush_once(){
+        List<Map.Entry<Key, Counter>> batch = new ArrayList<>(retired);
+        batch.addAll(counters.entrySet());
+
+        if(spool != null) write_spool(batch);
+
+        List<Map.Entry<Key, Counter>> next_retired = new ArrayList<>();
+        for(Map.Entry<Key, Counter> e : batch){
+            Counter c = e.getValue();
+            long pending = c.events.sum() - c.delivered;
+
+            if(pending > 0){
+                long accepted = deliver(e.getKey(), pending);
+
+                c.delivered += accepted;
+                c.idle_flushes = 0;
+                undelivered.add(-accepted);
+            }
+            else if(++c.idle_flushes > 1 && counters.remove(e.getKey(), c)) next_retired.add(e);
+        }
+
+        // retired counters which were not incremented in the meantime are gone for good
+        for(Map.Entry<Key, Counter> e : retired) if(e.getValue().events.sum() > e.getValue().delivered) next_retired.add(e);
+        retired = next_retired;
+
+        if(spool != null) write_spool(pending_entries());
+    }
+
+    private List<Map.Entry<Key, Counter>> pending_entries(){
+        List<Map.Entry<Key, Counter>> pending = new ArrayList<>();
+        for(Map.Entry<Key, Counter> e : counters.entrySet()) if(e.getValue().events.sum() > e.getValue().delivered) pending.add(e);
+        for(Map.Entry<Key, Counter> e : retired) if(e.getValue().events.sum() > e.getValue().delivered) pending.add(e);
+
+        return pending;
+    }
+
+    /**
+     * Sends one Trust request per event of a combination, stopping at the first one that is refused or can not be sent. 
+     * Override this method to deliver the aggregated events differently
+     * 
+     * @param local_user_name
+     * @param serial_number
+     * @param trust_type
+     * @param occurrences, the number of events since the last delivery
+     * @return the number of events done with, accepted or dropped, the rest are retried at the next flush
+     */
+    protected long deliver(String local_user_name, String serial_number, Object_Of_Trust trust_type, long occurrences){
+        for(long accepted = 0; accepted < occurrences; accepted++){
+            API_Response response;
+            try{
+                requests.incrementAndGet();
+                response = api_channel.put(new Trust(local_user_name, serial_number, null, trust_type));
+            }
+            catch(IOException e){
+                failed_requests.incrementAndGet();
+                Log.log(1, "Unable to deliver trust for " + local_user_name + ", it will be retried", e);
+                return accepted;
+            }
+            catch(RuntimeException e){
+                response = null;
+                Log.log(1, "Unable to deliver trust for " + local_user_name + ", " + (occurrences - accepted) + " events are dropped", e);
+            }
+
+            if(response != null && response.outcome.is_ok()) continue;
+
+            // the same request would be refused again, the remaining events of the combination are dropped
+            if(response != null) Log.log(2, "Trust for " + local_user_name + " was refused: " + response.outcome + ", " + (occurrences - accepted) + " events are dropped", null);
+            failed_requests.incrementAndGet();
+            api_channel.metrics.count("trust.refused");
+            return occurrences;
+        }
+
+        return occurrences;
+    }
+
+    private long deliver(Key key, long occurrences){
+        return deliver(key.local_user_name, key.serial_number, key.trust_type, occurrences);
+    }
+
+    private void write_spool(List<Map.Entry<Key, Counter>> entries){
+        File temp = new File(spool.getPath() + ".tmp");
+
+        try(BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)){
+            for(Map.Entry<Key, Counter> e : entries){
+                long pending = e.getValue().events.sum() - e.getValue().delivered;
+                if(pending <= 0) continue;
+
+                Key k = e.getKey();
+                out.write(Json.createObjectBuilder()
+                            .add("local-user-name", k.local_user_name)
+                            .add("serial-number", k.serial_number == null ? "" : k.serial_number)
+                            .add("trust-type", k.trust_type.name())
+                            .add(OCCURRENCES_FIELD, pending)
+                            .build().toString());
+                out.newLine();
+            }
+        }
+        catch(IOException e){
+            Log.log(1, "Unable to write the trust spool " + spool, e);
+            return;
+        }
+
+        try{
+            Files.move(temp.toPath(), spool.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e){
+            Log.log(1, "Unable to replace the trust spool " + spool, e);
+        }
+    }
+
+    private void load_spool() throws IOException{
+        try(BufferedReader in = Files.newBufferedReader(spool.toPath(), StandardCharsets.UTF_8)){
+            for(String line; (line = in.readLine()) != null; ){
+                if(line.trim().length() == 0) continue;
+
+                try(JsonReader reader = Json.createReader(new StringReader(line))){
+                    JsonObject o = reader.readObject();
+                    String serial_number = o.getString("serial-number", "");
+
+                    record(o.getString("local-user-name"), serial_number.length() == 0 ? null : serial_number, Object_Of_Trust.valueOf(o.getString("trust-type")), o.getJsonNumber(OCCURRENCES_FIELD).longValue());
+                }
+                catch(RuntimeException e){
+                    Log.log(1, "Skipping malformed line in the trust spool " + spool + ": " + line, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of events recorded
+     */
+    public long recorded(){
+        return recorded.get();
+    }
+
+    /**
+     * @return the number of recorded events not yet accepted by identity+
+     */
+    public long undelivered(){
+        return undelivered.sum();
+    }
+
+    /**
+     * @return the number of Trust requests made
+     */
+    public long requests(){
+        return requests.get();
+    }
+
+    /**
+     * @return the number of Trust requests that failed or were refused
+     */
+    public long failed_requests(){
+        return failed_requests.get();
+    }
+}
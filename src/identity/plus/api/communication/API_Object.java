@@ -57,6 +57,7 @@ import javax.json.JsonValue.ValueType;
 import javax.json.JsonWriter;
 
 import identity.plus.api.Identity_Plus_Utils;
+import identity.plus.api.util.Log;
 
 public abstract class API_Object implements Serializable{
     private static final long serialVersionUID = 1L;
@@ -102,7 +103,7 @@ public abstract class API_Object implements Serializable{
             custom_fields.put(key, object.getString(key));
         }
         catch(Exception e){
-            e.printStackTrace();
+            Log.log(1, "Unable to restore field " + key + " of " + getClass().getSimpleName(), e);
         }
     }
     
@@ -149,7 +150,7 @@ public abstract class API_Object implements Serializable{
             for(Object key : custom_fields.keySet()) b.add(key.toString(), custom_fields.get(key));
         }
         catch(Exception e){
-            e.printStackTrace();
+            Log.log(1, "Unable to serialize " + getClass().getSimpleName(), e);
         }
         
         return b;
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.metrics;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.json.JsonException;
+import javax.net.ssl.SSLException;
+
+import identity.plus.api.resilience.Rejected_Call_Exception;
+import identity.plus.api.util.HTTP_Status_Exception;
+
+/**
+ * Coarse classification of the errors encountered while calling the identity+ API
+ */
+public enum Error_Category {
+    timeout, connection, tls, http, parse, rejected, other;
+
+    /**
+     * @param e
+     * @return the category the exception falls into
+     */
+    public static Error_Category of(Throwable e){
+        if(e instanceof Rejected_Call_Exception) return rejected;
+        else if(e instanceof SocketTimeoutException) return timeout;
+        else if(e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException) return connection;
+        else if(e instanceof SSLException) return tls;
+        else if(e instanceof JsonException || e instanceof ClassCastException) return parse;
+        else if(e instanceof HTTP_Status_Exception) return http;
+        else return other;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the metrics as read only attributes of an MBean named identity.plus:type=API_Channel,name=[name].
+ * The attributes are the entries of Metrics_Recorder.snapshot(), they are computed when read.
+ */
+public class JMX_Metrics_Exporter implements Metrics_Exporter {
+    private final MBeanServer server;
+    private ObjectName object_name;
+
+    public JMX_Metrics_Exporter(){
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JMX_Metrics_Exporter(MBeanServer server){
+        this.server = server;
+    }
+
+    @Override
+    public synchronized void start(String name, Metrics_Recorder recorder) {
+        try{
+            object_name = new ObjectName("identity.plus:type=API_Channel,name=" + ObjectName.quote(name));
+            if(server.isRegistered(object_name)) server.unregisterMBean(object_name);
+            server.registerMBean(new Metrics_MBean(recorder), object_name);
+        }
+        catch(JMException e){
+            throw new IllegalStateException("Unable to register the metrics MBean", e);
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        try{
+            if(object_name != null && server.isRegistered(object_name)) server.unregisterMBean(object_name);
+        }
+        catch(JMException e){
+            // already gone
+        }
+    }
+
+    private static final class Metrics_MBean implements DynamicMBean {
+        private final Metrics_Recorder recorder;
+
+        private Metrics_MBean(Metrics_Recorder recorder){
+            this.recorder = recorder;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = recorder.snapshot().get(attribute);
+            if(value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> snapshot = recorder.snapshot();
+            AttributeList list = new AttributeList();
+            for(String a : attributes) if(snapshot.containsKey(a)) list.add(new Attribute(a, snapshot.get(a)));
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations available");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for(Map.Entry<String, Number> e : recorder.snapshot().entrySet()) attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+
+            return new MBeanInfo(getClass().getName(), "identity+ API Channel metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with log-linear buckets, in the spirit of HDR histograms.
+ * 
+ * Values are recorded in microseconds. Each power of 2 is split into 16 linear sub buckets, which keeps
+ * the relative error of the percentiles under 6.25% from 1 microsecond up to about 19 hours.
+ * Recording is a couple of atomic increments, reading is a scan of the buckets and is only meant for reporting.
+ */
+public class Latency_Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS +1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency
+     * 
+     * @param nanos, the latency in nano seconds
+     */
+    public void record_nanos(long nanos){
+        record_micros(nanos / 1000);
+    }
+
+    /**
+     * Records a latency
+     * 
+     * @param micros, the latency in micro seconds
+     */
+    public void record_micros(long micros){
+        if(micros < 0) micros = 0;
+
+        buckets.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+
+        long m = max.get();
+        while(micros > m && !max.compareAndSet(m, micros)) m = max.get();
+    }
+
+    private static int index(long micros){
+        if(micros < SUB_BUCKETS) return (int)micros;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub_bucket = (int)(micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS -1);
+
+        return (exponent - SUB_BUCKET_BITS +1) * SUB_BUCKETS + sub_bucket;
+    }
+
+    /**
+     * @param index
+     * @return the highest value that falls into the bucket
+     */
+    private static long upper_bound(int index){
+        if(index < SUB_BUCKETS) return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS -1;
+        long sub_bucket = index % SUB_BUCKETS;
+
+        return ((SUB_BUCKETS + sub_bucket +1) << (exponent - SUB_BUCKET_BITS)) -1;
+    }
+
+    public long count(){
+        return count.get();
+    }
+
+    /**
+     * @return the highest recorded value, in micro seconds
+     */
+    public long max(){
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, in micro seconds
+     */
+    public double mean(){
+        long n = count.get();
+        return n == 0 ? 0 : (double)total.get() / n;
+    }
+
+    /**
+     * @param percentile, between 0 and 100
+     * @return the value at the given percentile, in micro seconds
+     */
+    public long percentile(double percentile){
+        long n = 0;
+        for(int i = 0; i < BUCKETS; i++) n += buckets.get(i);
+        if(n == 0) return 0;
+
+        long rank = (long)Math.ceil(percentile / 100 * n);
+        if(rank < 1) rank = 1;
+
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += buckets.get(i);
+            if(seen >= rank) return Math.min(upper_bound(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one
+     * 
+     * @param other
+     */
+    public void add(Latency_Histogram other){
+        for(int i = 0; i < BUCKETS; i++){
+            long v = other.buckets.get(i);
+            if(v != 0) buckets.addAndGet(i, v);
+        }
+
+        count.addAndGet(other.count.get());
+        total.addAndGet(other.total.get());
+
+        long m = max.get();
+        while(other.max.get() > m && !max.compareAndSet(m, other.max.get())) m = max.get();
+    }
+
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
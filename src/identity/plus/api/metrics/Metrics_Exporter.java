@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.metrics;
+
+/**
+ * Publishes the metrics collected by a Metrics_Recorder to a monitoring system
+ */
+public interface Metrics_Exporter {
+        /**
+         * A exporter which does nothing, this is the default
+         */
+        public static final Metrics_Exporter NONE = new Metrics_Exporter() {
+                @Override
+                public void start(String name, Metrics_Recorder recorder) {
+                }
+
+                @Override
+                public void stop() {
+                }
+        };
+        
+        /**
+         * Starts publishing the metrics of the recorder
+         * 
+         * @param name, identifies the recorder (channel) among others
+         * @param recorder
+         */
+        public void start(String name, Metrics_Recorder recorder);
+        
+        public void stop();
+}
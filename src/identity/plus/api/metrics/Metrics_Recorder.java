@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import identity.plus.api.Identity_Plus_Utils;
+import identity.plus.api.Request_Method;
+import identity.plus.api.communication.Outcome;
+import identity.plus.api.util.TTL_Cache;
+
+/**
+ * Collects the metrics of an API Channel. All the recording methods are lock free and cheap enough
+ * to be called on every request, the reading methods are meant for reporting and exporters.
+ */
+public class Metrics_Recorder {
+    private final EnumMap<Request_Method, ConcurrentHashMap<Class<?>, Operation_Metrics>> operations = new EnumMap<>(Request_Method.class);
+    private final LongAdder bytes_sent = new LongAdder();
+    private final LongAdder bytes_received = new LongAdder();
+    private final AtomicInteger in_flight = new AtomicInteger();
+    private final AtomicInteger max_in_flight = new AtomicInteger();
+    private final Map<String, TTL_Cache<?, ?>> caches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> events = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Time spent establishing connections, including the TLS handshake. Reused (kept alive) connections are near 0
+     */
+    public final Latency_Histogram connect_time = new Latency_Histogram();
+
+    /**
+     * Time spent sending the request and waiting for the response, after the connection was established
+     */
+    public final Latency_Histogram request_time = new Latency_Histogram();
+
+    /**
+     * Time spent in TLS handshakes, full and resumed. It is only recorded for new connections
+     */
+    public final Latency_Histogram handshake_time = new Latency_Histogram();
+
+    public Metrics_Recorder(){
+        for(Request_Method m : Request_Method.values()) operations.put(m, new ConcurrentHashMap<Class<?>, Operation_Metrics>());
+    }
+
+    /**
+     * Gets the metrics of an operation, creating them on first use
+     * 
+     * @param method
+     * @param request_type, the class of the request object, null for ping
+     * @return
+     */
+    public Operation_Metrics operation(Request_Method method, Class<?> request_type){
+        Class<?> key = request_type == null ? Void.class : request_type;
+        ConcurrentHashMap<Class<?>, Operation_Metrics> by_type = operations.get(method);
+
+        Operation_Metrics m = by_type.get(key);
+        if(m == null) m = by_type.computeIfAbsent(key, (Class<?> k) -> new Operation_Metrics(method.name() + " " + (k == Void.class ? "Ping" : Identity_Plus_Utils.json_name(k))));
+
+        return m;
+    }
+
+    /**
+     * Records a completed call
+     * 
+     * @param method
+     * @param request_type
+     * @param nanos, how long the call took
+     * @param outcome, the outcome of the response
+     */
+    public void record(Request_Method method, Class<?> request_type, long nanos, Outcome outcome){
+        operation(method, request_type).record(nanos, outcome);
+    }
+
+    /**
+     * Records a failed call
+     * 
+     * @param method
+     * @param request_type
+     * @param category
+     */
+    public void record_error(Request_Method method, Class<?> request_type, Error_Category category){
+        operation(method, request_type).record_error(category);
+    }
+
+    public void record_transfer(long sent, long received){
+        if(sent > 0) bytes_sent.add(sent);
+        if(received > 0) bytes_received.add(received);
+    }
+
+    /**
+     * Marks the start of a call, it is used to track the connection usage
+     */
+    public void call_started(){
+        int n = in_flight.incrementAndGet();
+
+        int m = max_in_flight.get();
+        while(n > m && !max_in_flight.compareAndSet(m, n)) m = max_in_flight.get();
+    }
+
+    public void call_ended(){
+        in_flight.decrementAndGet();
+    }
+
+    /**
+     * Counts an event, such as a retry or a rejected call
+     * 
+     * @param event, the name of the event, dot separated words, for example retry.attempts
+     */
+    public void count(String event){
+        LongAdder n = events.get(event);
+        if(n == null) n = events.computeIfAbsent(event, (String k) -> new LongAdder());
+        n.increment();
+    }
+
+    /**
+     * @param event
+     * @return how many times the event was counted
+     */
+    public long count_of(String event){
+        LongAdder n = events.get(event);
+        return n == null ? 0 : n.sum();
+    }
+
+    /**
+     * Includes a value which is read when the metrics are taken, such as the current concurrency limit
+     * 
+     * @param name
+     * @param gauge, reads the value
+     */
+    public void register_gauge(String name, Supplier<Number> gauge){
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Includes the hit ratio of a cache in the metrics
+     * 
+     * @param name
+     * @param cache
+     */
+    public void register_cache(String name, TTL_Cache<?, ?> cache){
+        caches.put(name, cache);
+    }
+
+    public Collection<Operation_Metrics> operations(){
+        List<Operation_Metrics> all = new ArrayList<>();
+        for(ConcurrentHashMap<Class<?>, Operation_Metrics> by_type : operations.values()) all.addAll(by_type.values());
+        return all;
+    }
+
+    public long bytes_sent(){
+        return bytes_sent.sum();
+    }
+
+    public long bytes_received(){
+        return bytes_received.sum();
+    }
+
+    /**
+     * @return the number of calls currently in progress, which is also the number of connections in use
+     */
+    public int in_flight(){
+        return in_flight.get();
+    }
+
+    public int max_in_flight(){
+        return max_in_flight.get();
+    }
+
+    /**
+     * @param name
+     * @return the hit ratio of the registered cache, between 0 and 1, or NaN if it was never read
+     */
+    public double cache_hit_ratio(String name){
+        TTL_Cache<?, ?> cache = caches.get(name);
+        if(cache == null) return Double.NaN;
+
+        long hits = cache.hits(), total = hits + cache.misses();
+        return total == 0 ? Double.NaN : (double)hits / total;
+    }
+
+    /**
+     * Flattens the metrics into name - value pairs, latencies are in milliseconds.
+     * Only non zero outcome and error counts are included.
+     * 
+     * @return
+     */
+    public Map<String, Number> snapshot(){
+        Map<String, Number> s = new LinkedHashMap<>();
+
+        for(Operation_Metrics op : operations()){
+            String prefix = op.name.replace(' ', '.') + ".";
+            s.put(prefix + "count", op.latency.count());
+            s.put(prefix + "p50-ms", op.latency.percentile(50) / 1000.0);
+            s.put(prefix + "p99-ms", op.latency.percentile(99) / 1000.0);
+            s.put(prefix + "p999-ms", op.latency.percentile(99.9) / 1000.0);
+            s.put(prefix + "max-ms", op.latency.max() / 1000.0);
+            for(Outcome o : Outcome.values()) if(op.count(o) > 0) s.put(prefix + "outcome." + o.code, op.count(o));
+            for(Error_Category c : Error_Category.values()) if(op.count(c) > 0) s.put(prefix + "error." + c.name(), op.count(c));
+        }
+
+        s.put("bytes-sent", bytes_sent());
+        s.put("bytes-received", bytes_received());
+        s.put("connect.p50-ms", connect_time.percentile(50) / 1000.0);
+        s.put("connect.p99-ms", connect_time.percentile(99) / 1000.0);
+        s.put("request.p50-ms", request_time.percentile(50) / 1000.0);
+        s.put("request.p99-ms", request_time.percentile(99) / 1000.0);
+        s.put("tls.handshake.p50-ms", handshake_time.percentile(50) / 1000.0);
+        s.put("tls.handshake.p99-ms", handshake_time.percentile(99) / 1000.0);
+        s.put("connections.in-use", in_flight());
+        s.put("connections.max-in-use", max_in_flight());
+        for(String cache : caches.keySet()) s.put("cache." + cache + ".hit-ratio", cache_hit_ratio(cache));
+        for(Map.Entry<String, LongAdder> e : events.entrySet()) s.put(e.getKey(), e.getValue().sum());
+        for(Map.Entry<String, Supplier<Number>> g : gauges.entrySet()) s.put(g.getKey(), g.getValue().get());
+
+        return s;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import identity.plus.api.communication.Outcome;
+
+/**
+ * The metrics of one operation (HTTP method and request type) of the identity+ API
+ */
+public class Operation_Metrics {
+    /**
+     * The name of the operation, for example "GET Identity-Inquiry"
+     */
+    public final String name;
+
+    /**
+     * The latency of the calls, from the moment the request is dispatched until the response is decoded
+     */
+    public final Latency_Histogram latency = new Latency_Histogram();
+
+    private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+    private final AtomicLongArray errors = new AtomicLongArray(Error_Category.values().length);
+
+    Operation_Metrics(String name){
+        this.name = name;
+    }
+
+    void record(long nanos, Outcome outcome){
+        latency.record_nanos(nanos);
+        if(outcome != null) outcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    void record_error(Error_Category category){
+        errors.incrementAndGet(category.ordinal());
+    }
+
+    /**
+     * @param outcome
+     * @return how many calls ended with the given outcome
+     */
+    public long count(Outcome outcome){
+        return outcomes.get(outcome.ordinal());
+    }
+
+    /**
+     * @param category
+     * @return how many calls failed with an error in the given category
+     */
+    public long count(Error_Category category){
+        return errors.get(category.ordinal());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of concurrent calls reserved for one class of operations, so that a flood of one kind of calls 
+ * (for example intrusion reports during an attack) cannot take all the threads and connections from the others.
+ * 
+ * Calls over the limit wait in a bounded queue for a bounded time, then they are rejected with a Rejected_Call_Exception.
+ */
+public class Bulkhead {
+    /**
+     * The name of the bulkhead, for the messages and metrics
+     */
+    public final String name;
+
+    /**
+     * How many calls can run at the same time
+     */
+    public final int max_concurrent;
+
+    /**
+     * How many calls can wait, more are rejected
+     */
+    public final int max_queue;
+
+    /**
+     * How long a call waits at most, in milliseconds. It also never waits beyond its deadline
+     */
+    public final long max_wait_millis;
+
+    private final Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Constructor
+     * 
+     * @param name
+     * @param max_concurrent, how many calls can run at the same time
+     * @param max_queue, how many calls can wait
+     * @param max_wait_millis, how long a call waits at most
+     */
+    public Bulkhead(String name, int max_concurrent, int max_queue, long max_wait_millis){
+        if(max_concurrent < 1) throw new IllegalArgumentException("The bulkhead must allow at least one call");
+
+        this.name = name;
+        this.max_concurrent = max_concurrent;
+        this.max_queue = Math.max(0, max_queue);
+        this.max_wait_millis = Math.max(0, max_wait_millis);
+        this.permits = new Semaphore(max_concurrent);
+    }
+
+    /**
+     * Waits for a place in the bulkhead, each successful acquire must be followed by a release
+     * 
+     * @param deadline, the call does not wait beyond it
+     * @throws Rejected_Call_Exception if the queue is full or the call waited too long
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(Deadline deadline) throws IOException{
+        if(permits.tryAcquire()) return;
+
+        if(waiting.incrementAndGet() > max_queue){
+            waiting.decrementAndGet();
+            throw new Rejected_Call_Exception("The " + name + " bulkhead is full");
+        }
+
+        try{
+            long wait = Math.min(TimeUnit.MILLISECONDS.toNanos(max_wait_millis), deadline.remaining_nanos());
+            if(!permits.tryAcquire(wait, TimeUnit.NANOSECONDS)) throw new Rejected_Call_Exception("The " + name + " bulkhead is full");
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the " + name + " bulkhead");
+        }
+        finally{
+            waiting.decrementAndGet();
+        }
+    }
+
+    public void release(){
+        permits.release();
+    }
+
+    /**
+     * @return how many calls are running
+     */
+    public int in_use(){
+        return max_concurrent - permits.availablePermits();
+    }
+
+    /**
+     * @return how many calls are waiting
+     */
+    public int waiting(){
+        return waiting.get();
+    }
+}
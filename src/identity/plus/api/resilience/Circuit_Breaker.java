@@ -0,0 +1,227 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.util.Log;
+
+/**
+ * Stops calling an endpoint which is down or too slow, so that the callers fail in microseconds rather than
+ * tying up threads waiting on it.
+ * 
+ * The breaker is closed while the failure rate and the slow call rate over the sliding window of recent calls are 
+ * below the thresholds of the policy. When either is reached, the breaker opens and every call is rejected with a 
+ * Rejected_Call_Exception. Once the open period has passed, the next caller starts a probe on a background thread
+ * (the callers are still rejected meanwhile). If the probe succeeds the breaker is half open: a few trial calls are 
+ * let through, and it closes if they all succeed or opens again at the first failed or slow one.
+ * 
+ * Checking a closed breaker is a single volatile read, recording a result is a short synchronized update of the window.
+ */
+public class Circuit_Breaker {
+    public enum State {closed, open, half_open}
+
+    /**
+     * Checks if the endpoint is back, for example with a ping
+     */
+    @FunctionalInterface
+    public interface Probe{
+        public void probe() throws IOException;
+    }
+
+    private static final byte FAILED = 1, SLOW = 2;
+
+    /**
+     * The name of the protected operation, for example "GET Identity-Inquiry"
+     */
+    public final String name;
+
+    /**
+     * The thresholds
+     */
+    public final Circuit_Breaker_Policy policy;
+
+    private final Probe probe;
+    private final Metrics_Recorder metrics;
+    private final long slow_call_nanos;
+    private final long open_nanos;
+
+    private volatile State state = State.closed;
+    private volatile long opened_at;
+    private volatile long half_opened_at;
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+    private final AtomicInteger trial_permits = new AtomicInteger();
+    private final AtomicInteger trial_successes = new AtomicInteger();
+
+    // the sliding window, guarded by this
+    private final byte[] window;
+    private int position, calls, failures, slow_calls;
+
+    /**
+     * Constructor
+     * 
+     * @param name, the name of the protected operation
+     * @param policy, the thresholds
+     * @param probe, checks if the endpoint is back
+     * @param metrics, counts the state changes and rejections as breaker.opened, breaker.closed and breaker.rejected, can be null
+     */
+    public Circuit_Breaker(String name, Circuit_Breaker_Policy policy, Probe probe, Metrics_Recorder metrics){
+        this.name = name;
+        this.policy = policy;
+        this.probe = probe;
+        this.metrics = metrics;
+        this.slow_call_nanos = policy.slow_call_millis * 1000000L;
+        this.open_nanos = policy.open_millis * 1000000L;
+        this.window = new byte[policy.window_size];
+    }
+
+    public State state(){
+        return state;
+    }
+
+    /**
+     * Asks permission to make a call
+     * 
+     * @throws Rejected_Call_Exception if the breaker is open, or half open and the trial calls are taken
+     */
+    public void acquire() throws Rejected_Call_Exception{
+        State s = state;
+        if(s == State.closed) return;
+
+        if(s == State.open){
+            if(System.nanoTime() - opened_at >= open_nanos && probing.compareAndSet(false, true)) start_probe();
+        }
+        else if(trial_permits.getAndDecrement() > 0) return;
+        // trial calls were let through but not all of them reported back (cancelled), start over
+        else if(System.nanoTime() - half_opened_at >= open_nanos) trip();
+
+        if(metrics != null) metrics.count("breaker.rejected");
+        throw new Rejected_Call_Exception("The circuit breaker of " + name + " is " + s);
+    }
+
+    /**
+     * Records the result of a permitted call
+     * 
+     * @param nanos, how long the call took
+     * @param failed, whether the call failed (see Circuit_Breaker_Policy.is_failure)
+     */
+    public void record(long nanos, boolean failed){
+        boolean slow = nanos >= slow_call_nanos;
+        State s = state;
+
+        if(s == State.half_open){
+            if(failed || slow) trip();
+            else if(trial_successes.incrementAndGet() >= policy.half_open_calls) close();
+            return;
+        }
+
+        // late results of calls made before the breaker opened
+        if(s == State.open) return;
+
+        boolean trip = false;
+        synchronized(this){
+            byte previous = window[position];
+            if(calls == window.length){
+                if((previous & FAILED) != 0) failures--;
+                if((previous & SLOW) != 0) slow_calls--;
+            }
+            else calls++;
+
+            window[position] = (byte)((failed ? FAILED : 0) | (slow ? SLOW : 0));
+            if(failed) failures++;
+            if(slow) slow_calls++;
+            position = (position +1) % window.length;
+
+            trip = calls >= policy.minimum_calls && (failures * 100.0 >= policy.failure_rate_threshold * calls || slow_calls * 100.0 >= policy.slow_call_rate_threshold * calls);
+        }
+
+        if(trip) trip();
+    }
+
+    private void trip(){
+        synchronized(this){
+            if(state == State.open) return;
+
+            opened_at = System.nanoTime();
+            state = State.open;
+            reset_window();
+        }
+
+        if(metrics != null) metrics.count("breaker.opened");
+        Log.log(1, "The circuit breaker of " + name + " opened", null);
+    }
+
+    private void close(){
+        synchronized(this){
+            if(state != State.half_open) return;
+
+            reset_window();
+            state = State.closed;
+        }
+
+        if(metrics != null) metrics.count("breaker.closed");
+        Log.log(2, "The circuit breaker of " + name + " closed", null);
+    }
+
+    private void reset_window(){
+        position = calls = failures = slow_calls = 0;
+    }
+
+    private void start_probe(){
+        Thread t = new Thread(() -> {
+                try{
+                    probe.probe();
+
+                    synchronized(this){
+                        trial_successes.set(0);
+                        trial_permits.set(policy.half_open_calls);
+                        half_opened_at = System.nanoTime();
+                        state = State.half_open;
+                    }
+                }
+                catch(IOException | RuntimeException e){
+                    // stay open for another period
+                    opened_at = System.nanoTime();
+                }
+                finally{
+                    probing.set(false);
+                }
+        }, "identity-plus-breaker-probe");
+
+        t.setDaemon(true);
+        t.start();
+    }
+}
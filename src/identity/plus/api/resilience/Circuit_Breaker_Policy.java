@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+/**
+ * The thresholds of the circuit breakers of an API Channel, there is one breaker for each operation
+ * (see Circuit_Breaker). 
+ * 
+ * A breaker opens when, over the last window_size calls, the rate of failed calls or the rate of slow calls 
+ * reaches its threshold. While open, calls are rejected immediately. After open_millis the endpoint is probed
+ * with a ping and, if it answers, a few trial calls are let through before the breaker closes again.
+ */
+public class Circuit_Breaker_Policy {
+    /**
+     * How many of the most recent calls the rates are computed over
+     */
+    public final int window_size;
+
+    /**
+     * The rates are not evaluated before this many calls were recorded
+     */
+    public final int minimum_calls;
+
+    /**
+     * The percentage of failed calls which opens the breaker
+     */
+    public final double failure_rate_threshold;
+
+    /**
+     * Calls taking longer than this are slow, in milliseconds
+     */
+    public final long slow_call_millis;
+
+    /**
+     * The percentage of slow calls which opens the breaker
+     */
+    public final double slow_call_rate_threshold;
+
+    /**
+     * How long the breaker stays open before the endpoint is probed, in milliseconds
+     */
+    public final long open_millis;
+
+    /**
+     * How many trial calls must succeed after a successful probe for the breaker to close
+     */
+    public final int half_open_calls;
+
+    /**
+     * Constructor
+     * 
+     * @param window_size, how many of the most recent calls the rates are computed over
+     * @param minimum_calls, the rates are not evaluated before this many calls
+     * @param failure_rate_threshold, the percentage of failed calls which opens the breaker
+     * @param slow_call_millis, calls taking longer than this are slow
+     * @param slow_call_rate_threshold, the percentage of slow calls which opens the breaker
+     * @param open_millis, how long the breaker stays open before probing
+     * @param half_open_calls, how many trial calls must succeed to close the breaker
+     */
+    public Circuit_Breaker_Policy(int window_size, int minimum_calls, double failure_rate_threshold, long slow_call_millis, double slow_call_rate_threshold, long open_millis, int half_open_calls){
+        if(window_size < 1 || minimum_calls < 1 || half_open_calls < 1) throw new IllegalArgumentException("The window, the minimum number of calls and the trial calls must be positive");
+
+        this.window_size = window_size;
+        this.minimum_calls = Math.min(minimum_calls, window_size);
+        this.failure_rate_threshold = failure_rate_threshold;
+        this.slow_call_millis = slow_call_millis;
+        this.slow_call_rate_threshold = slow_call_rate_threshold;
+        this.open_millis = open_millis;
+        this.half_open_calls = half_open_calls;
+    }
+
+    /**
+     * @return opens at 50% failed or 80% slower than 2 seconds over the last 100 calls (at least 20),
+     * probes after 5 seconds and closes after 5 successful trial calls
+     */
+    public static Circuit_Breaker_Policy default_policy(){
+        return new Circuit_Breaker_Policy(100, 20, 50, 2000, 80, 5000, 5);
+    }
+
+    /**
+     * Decides if an error counts against the health of the endpoint. Client errors (HTTP 4xx, except 429) are 
+     * the caller's problem and do not.
+     * 
+     * @param e
+     * @return
+     */
+    public boolean is_failure(Throwable e){
+        return Endpoint_Balancer.is_failure(e);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent calls of an API Channel to what the identity+ API can serve without queuing,
+ * and adapts the limit to what is observed.
+ * 
+ * The limit follows AIMD (additive increase, multiplicative decrease), steered by the round trip time: 
+ *     - a dropped call (timeout, connection problem, throttling or server error) cuts the limit by 10%
+ *     - a call much slower than the baseline (the minimum round trip time, re-learned periodically) means requests are
+ *       queuing upstream and the limit is lowered slightly
+ *     - a call at the baseline latency, while the limit is actually in use, raises the limit by 1/limit, 
+ *       or by about 1 for each round of calls
+ * 
+ * Calls over the limit wait in a bounded queue, for a bounded time. When the queue is full or the wait is over the call
+ * is rejected right away with a Rejected_Call_Exception, a fast and predictable failure instead of piling up threads.
+ * Priority calls (the identity inquiries) are let through first: while any of them waits, the others don't get a place.
+ */
+public class Concurrency_Limiter {
+    /**
+     * The limit never goes below this
+     */
+    public final int min_limit;
+
+    /**
+     * The limit never goes above this
+     */
+    public final int max_limit;
+
+    /**
+     * How many calls can wait for the limit, more are rejected
+     */
+    public final int max_queue;
+
+    /**
+     * How long a call waits for the limit at most, in milliseconds. It also never waits beyond its deadline
+     */
+    public final long max_wait_millis;
+
+    /**
+     * How many times slower than the baseline a call must be to count as queuing upstream
+     */
+    public final double rtt_tolerance;
+
+    /**
+     * The limit is multiplied by this when a call is dropped
+     */
+    public final double backoff_ratio = 0.9;
+
+    /**
+     * How many samples the baseline round trip time is learned over, after which it is learned again so it can also go up
+     */
+    private static final int BASELINE_SAMPLES = 1000;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Condition released_for_priority = lock.newCondition();
+
+    // guarded by lock
+    private double limit;
+    private int in_flight;
+    private int waiting;
+    private int waiting_priority;
+    private long baseline_rtt = Long.MAX_VALUE;
+    private long next_baseline_rtt = Long.MAX_VALUE;
+    private int samples;
+
+    /**
+     * Constructor
+     * 
+     * @param initial_limit
+     * @param min_limit
+     * @param max_limit
+     * @param max_queue, how many calls can wait for the limit
+     * @param max_wait_millis, how long a call waits for the limit at most
+     * @param rtt_tolerance, how many times slower than the baseline a call must be to count as queuing upstream, for example 2
+     */
+    public Concurrency_Limiter(int initial_limit, int min_limit, int max_limit, int max_queue, long max_wait_millis, double rtt_tolerance){
+        if(min_limit < 1 || max_limit < min_limit) throw new IllegalArgumentException("The limits must be positive and the minimum not above the maximum");
+        if(rtt_tolerance <= 1) throw new IllegalArgumentException("The tolerance must be above 1");
+
+        this.min_limit = min_limit;
+        this.max_limit = max_limit;
+        this.limit = Math.max(min_limit, Math.min(max_limit, initial_limit));
+        this.max_queue = Math.max(0, max_queue);
+        this.max_wait_millis = Math.max(0, max_wait_millis);
+        this.rtt_tolerance = rtt_tolerance;
+    }
+
+    /**
+     * @return starts at 20 concurrent calls, between 4 and 200, queue of 100 for at most 50ms, tolerance 2
+     */
+    public static Concurrency_Limiter default_limiter(){
+        return new Concurrency_Limiter(20, 4, 200, 100, 50, 2);
+    }
+
+    /**
+     * Waits for the limit to allow one more call. Each successful acquire must be followed by a release or an abandon.
+     * 
+     * @param deadline, the call does not wait beyond it
+     * @throws Rejected_Call_Exception if the queue is full or the call waited too long
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(Deadline deadline) throws IOException{
+        acquire(deadline, false);
+    }
+
+    /**
+     * Waits for the limit to allow one more call. Each successful acquire must be followed by a release or an abandon.
+     * 
+     * @param deadline, the call does not wait beyond it
+     * @param priority, whether the call goes before the others
+     * @throws Rejected_Call_Exception if the queue is full or the call waited too long
+     * @throws InterruptedIOException if the thread was interrupted while waiting
+     */
+    public void acquire(Deadline deadline, boolean priority) throws IOException{
+        lock.lock();
+        try{
+            if(in_flight < (int)limit && (priority || waiting_priority == 0)){
+                in_flight++;
+                return;
+            }
+
+            if(waiting >= max_queue) throw new Rejected_Call_Exception("The concurrency limit of " + (int)limit + " is reached and " + waiting + " calls are waiting");
+
+            long wait = Math.min(TimeUnit.MILLISECONDS.toNanos(max_wait_millis), deadline.remaining_nanos());
+            waiting++;
+            if(priority) waiting_priority++;
+            try{
+                while(in_flight >= (int)limit || (!priority && waiting_priority > 0)){
+                    if(wait <= 0) throw new Rejected_Call_Exception("The concurrency limit of " + (int)limit + " is reached");
+                    wait = (priority ? released_for_priority : released).awaitNanos(wait);
+                }
+
+                in_flight++;
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the concurrency limit");
+            }
+            finally{
+                waiting--;
+                if(priority && --waiting_priority == 0) signal();
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a call and adapts the limit
+     * 
+     * @param rtt_nanos, the round trip time of the call
+     * @param dropped, whether the call failed in a way that suggests overload
+     */
+    public void release(long rtt_nanos, boolean dropped){
+        lock.lock();
+        try{
+            boolean used = in_flight >= limit / 2;
+            in_flight--;
+
+            if(dropped) limit = Math.max(min_limit, limit * backoff_ratio);
+            else{
+                if(rtt_nanos < baseline_rtt) baseline_rtt = rtt_nanos;
+                if(rtt_nanos < next_baseline_rtt) next_baseline_rtt = rtt_nanos;
+                if(++samples == BASELINE_SAMPLES){
+                    baseline_rtt = next_baseline_rtt;
+                    next_baseline_rtt = Long.MAX_VALUE;
+                    samples = 0;
+                }
+
+                if(rtt_nanos > rtt_tolerance * baseline_rtt) limit = Math.max(min_limit, limit * 0.98);
+                else if(used) limit = Math.min(max_limit, limit + 1 / limit);
+            }
+
+            signal();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a call without adapting the limit, for calls whose result says nothing about the service, 
+     * such as cancelled ones
+     */
+    public void abandon(){
+        lock.lock();
+        try{
+            in_flight--;
+            signal();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    private void signal(){
+        int free = (int)limit - in_flight;
+        for(; free > 0 && lock.hasWaiters(released_for_priority); free--) released_for_priority.signal();
+        if(waiting_priority == 0) for(; free > 0 && lock.hasWaiters(released); free--) released.signal();
+    }
+
+    /**
+     * @return the current limit
+     */
+    public int limit(){
+        lock.lock();
+        try{
+            return (int)limit;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    public int in_flight(){
+        lock.lock();
+        try{
+            return in_flight;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many calls are waiting for the limit
+     */
+    public int waiting(){
+        lock.lock();
+        try{
+            return waiting;
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+}
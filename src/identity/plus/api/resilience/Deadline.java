@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+/**
+ * A point in time by which a call must complete, measured on the monotonic clock (System.nanoTime)
+ * 
+ * A deadline can be given explicitly to the calls which accept one, or it can be entered as the current deadline of
+ * the thread, for example for the duration of a servlet request, in which case it bounds every call the thread makes
+ * through an API Channel:
+ * 
+ *     try(Deadline.Scope scope = Deadline.after(500).enter()){
+ *         ...
+ *     }
+ */
+public final class Deadline {
+    /**
+     * No deadline
+     */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE, false);
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Restores the previous deadline of the thread when closed
+     */
+    public static final class Scope implements AutoCloseable{
+        private final Deadline previous;
+
+        private Scope(Deadline previous){
+            this.previous = previous;
+        }
+
+        @Override
+        public void close(){
+            if(previous == null) CURRENT.remove();
+            else CURRENT.set(previous);
+        }
+    }
+
+    private final long expires_nanos;
+    private final boolean bounded;
+
+    private Deadline(long expires_nanos, boolean bounded){
+        this.expires_nanos = expires_nanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * @param millis
+     * @return a deadline the given number of milliseconds from now, NONE if millis is 0 or negative
+     */
+    public static Deadline after(long millis){
+        return millis <= 0 ? NONE : new Deadline(System.nanoTime() + millis * 1000000L, true);
+    }
+
+    /**
+     * @return the deadline entered by the current thread, NONE if there is none
+     */
+    public static Deadline current(){
+        Deadline d = CURRENT.get();
+        return d == null ? NONE : d;
+    }
+
+    /**
+     * Makes this the current deadline of the thread until the scope is closed. If the thread already has 
+     * an earlier deadline, that one stays in effect.
+     * 
+     * @return the scope, to be closed
+     */
+    public Scope enter(){
+        Deadline previous = CURRENT.get();
+        CURRENT.set(previous == null ? this : earliest(this, previous));
+
+        return new Scope(previous);
+    }
+
+    /**
+     * @param a
+     * @param b
+     * @return the deadline that expires first
+     */
+    public static Deadline earliest(Deadline a, Deadline b){
+        if(!a.bounded) return b;
+        if(!b.bounded) return a;
+        return a.expires_nanos - b.expires_nanos <= 0 ? a : b;
+    }
+
+    /**
+     * @return false for NONE
+     */
+    public boolean is_bounded(){
+        return bounded;
+    }
+
+    /**
+     * @return the time left in nanoseconds, 0 if expired, Long.MAX_VALUE if not bounded
+     */
+    public long remaining_nanos(){
+        if(!bounded) return Long.MAX_VALUE;
+        return Math.max(0, expires_nanos - System.nanoTime());
+    }
+
+    /**
+     * @return the time left in milliseconds, 0 if expired, Long.MAX_VALUE if not bounded
+     */
+    public long remaining_millis(){
+        if(!bounded) return Long.MAX_VALUE;
+        return remaining_nanos() / 1000000L;
+    }
+
+    public boolean expired(){
+        return bounded && expires_nanos - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return bounded ? remaining_millis() + "ms left" : "no deadline";
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the identity+ API endpoints a channel balances its calls over, with the live statistics the balancer
+ * decides on: the calls in flight, the moving average of the latency and the failures in a row.
+ */
+public class Endpoint {
+    /**
+     * The identity+ ReST API url
+     */
+    public final String url;
+
+    /**
+     * The relative share of calls, endpoints with a higher weight are preferred
+     */
+    public final int weight;
+
+    /**
+     * The region of the endpoint, can be null
+     */
+    public final String region;
+
+    private final AtomicInteger in_flight = new AtomicInteger();
+    private final AtomicInteger failures_in_a_row = new AtomicInteger();
+    private volatile double latency_nanos = 0;
+    private volatile long ejected_until;
+    private volatile boolean ejected;
+    volatile int ejections;
+
+    /**
+     * Constructor
+     * 
+     * @param url, the identity+ ReST API url
+     * @param weight, the relative share of calls
+     * @param region, the region of the endpoint, can be null
+     */
+    public Endpoint(String url, int weight, String region){
+        if(url == null || weight < 1) throw new IllegalArgumentException("The endpoint must have a url and a positive weight");
+
+        this.url = url;
+        this.weight = weight;
+        this.region = region;
+    }
+
+    /**
+     * Parses an endpoint formatted as: url [weight=n] [region=name], for example
+     * https://api.identity.plus/api/v1 weight=2 region=eu
+     * 
+     * @param spec
+     * @return
+     */
+    public static Endpoint parse(String spec){
+        String[] parts = spec.trim().split("\\s+");
+        int weight = 1;
+        String region = null;
+
+        for(int i = 1; i < parts.length; i++){
+            if(parts[i].startsWith("weight=")) weight = Integer.parseInt(parts[i].substring("weight=".length()));
+            else if(parts[i].startsWith("region=")) region = parts[i].substring("region=".length());
+            else throw new IllegalArgumentException("Unknown endpoint attribute: " + parts[i]);
+        }
+
+        return new Endpoint(parts[0], weight, region);
+    }
+
+    public int in_flight(){
+        return in_flight.get();
+    }
+
+    /**
+     * @return the exponentially weighted moving average of the latency, in milliseconds
+     */
+    public double latency_millis(){
+        return latency_nanos / 1000000;
+    }
+
+    /**
+     * @param now, System.nanoTime()
+     * @return false while the endpoint is ejected
+     */
+    public boolean is_available(long now){
+        return !ejected || now - ejected_until >= 0;
+    }
+
+    boolean is_ejected(long now){
+        return !is_available(now);
+    }
+
+    /**
+     * The cost of sending one more call to this endpoint, the lower the better
+     */
+    double score(){
+        // endpoints without samples yet look as good as the fastest, so they get explored
+        return (latency_nanos + 1) * (in_flight.get() +1) / weight;
+    }
+
+    void call_started(){
+        in_flight.incrementAndGet();
+    }
+
+    /**
+     * @param nanos
+     * @param failed
+     * @param alpha, the weight of the new sample in the moving average
+     * @return the number of failures in a row
+     */
+    int call_ended(long nanos, boolean failed, double alpha){
+        in_flight.decrementAndGet();
+
+        // failures are usually fast, they would make a broken endpoint look attractive
+        if(failed) return failures_in_a_row.incrementAndGet();
+
+        double previous = latency_nanos;
+        latency_nanos = previous == 0 ? nanos : previous + alpha * (nanos - previous);
+        failures_in_a_row.set(0);
+
+        return 0;
+    }
+
+    void call_abandoned(){
+        in_flight.decrementAndGet();
+    }
+
+    /**
+     * Forgets one past ejection for each period spent in rotation since the last ejection ended
+     * 
+     * @param now, System.nanoTime()
+     * @param period_nanos
+     */
+    void forgive(long now, long period_nanos){
+        if(!ejected || period_nanos <= 0) return;
+
+        long in_rotation = now - ejected_until;
+        if(in_rotation > 0) ejections = (int)Math.max(0, ejections - in_rotation / period_nanos);
+    }
+
+    void eject(long until){
+        ejected_until = until;
+        ejected = true;
+        ejections++;
+        failures_in_a_row.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return url + (region != null ? " (" + region + ")" : "");
+    }
+}
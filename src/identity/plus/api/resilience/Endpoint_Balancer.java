@@ -0,0 +1,243 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import identity.plus.api.metrics.Error_Category;
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.util.Log;
+
+/**
+ * Spreads the calls of an API Channel over several identity+ API endpoints.
+ * 
+ * Each call goes to the better of two endpoints drawn at random, in proportion to their weights ("power of two choices"), 
+ * where better is the lower product of the moving average latency and the calls in flight. This avoids herding onto
+ * a single endpoint while still favoring the fast ones. Endpoints in the local region are preferred as long as one
+ * of them is available.
+ * 
+ * An endpoint failing max_failures times in a row is an outlier and it is ejected for a while, longer at each
+ * ejection. One past ejection is forgiven for each longest ejection period (10 x ejection_millis) the endpoint 
+ * stays in rotation, so a few old incidents don't keep it at the longest ejection. At most half of the endpoints are ejected at any time, and if none is available the ejections are ignored.
+ */
+public class Endpoint_Balancer {
+    /**
+     * The endpoints
+     */
+    public final List<Endpoint> endpoints;
+
+    /**
+     * The region of the calling application, endpoints in this region are preferred, can be null
+     */
+    public final String local_region;
+
+    /**
+     * How many failures in a row eject an endpoint
+     */
+    public final int max_failures;
+
+    /**
+     * How long the first ejection lasts, in milliseconds, each subsequent ejection is longer up to 10 times
+     */
+    public final long ejection_millis;
+
+    /**
+     * The weight of the newest latency in the moving average
+     */
+    public final double alpha = 0.2;
+
+    private final Metrics_Recorder metrics;
+
+    /**
+     * Constructor
+     * 
+     * @param endpoints
+     * @param local_region, can be null
+     * @param max_failures, how many failures in a row eject an endpoint
+     * @param ejection_millis, how long the first ejection lasts
+     * @param metrics, counts the ejections (endpoint.ejected), can be null
+     */
+    public Endpoint_Balancer(Collection<Endpoint> endpoints, String local_region, int max_failures, long ejection_millis, Metrics_Recorder metrics){
+        if(endpoints.isEmpty()) throw new IllegalArgumentException("At least one endpoint is needed");
+
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        this.local_region = local_region;
+        this.max_failures = Math.max(1, max_failures);
+        this.ejection_millis = ejection_millis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Parses the endpoints, separated by ";" or new lines (see Endpoint.parse). Ejects after 5 failures in a row for 10 seconds.
+     * 
+     * @param endpoints
+     * @param local_region, can be null
+     * @param metrics, can be null
+     * @return
+     */
+    public static Endpoint_Balancer parse(String endpoints, String local_region, Metrics_Recorder metrics){
+        List<Endpoint> list = new ArrayList<>();
+        for(String spec : endpoints.split("[;\\n]")) if(spec.trim().length() > 0) list.add(Endpoint.parse(spec));
+
+        return new Endpoint_Balancer(list, local_region, 5, 10000, metrics);
+    }
+
+    /**
+     * Chooses the endpoint for a call
+     * 
+     * @param excluded, endpoints already tried by the call, can be null
+     * @return the endpoint, null if all were excluded
+     */
+    public Endpoint choose(List<Endpoint> excluded){
+        long now = System.nanoTime();
+        List<Endpoint> candidates = candidates(now, excluded, true, true);
+        if(candidates.isEmpty()) candidates = candidates(now, excluded, false, true);
+        if(candidates.isEmpty()) candidates = candidates(now, excluded, false, false);
+        if(candidates.isEmpty()) return null;
+        if(candidates.size() == 1) return candidates.get(0);
+
+        Endpoint a = draw(candidates, null);
+        Endpoint b = draw(candidates, a);
+
+        return a.score() <= b.score() ? a : b;
+    }
+
+    private List<Endpoint> candidates(long now, List<Endpoint> excluded, boolean local_only, boolean available_only){
+        List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+
+        for(Endpoint e : endpoints){
+            if(excluded != null && excluded.contains(e)) continue;
+            if(available_only && !e.is_available(now)) continue;
+            if(local_only && local_region != null && !local_region.equals(e.region)) continue;
+            candidates.add(e);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Draws an endpoint at random, in proportion to the weights
+     */
+    private static Endpoint draw(List<Endpoint> candidates, Endpoint other_than){
+        int total = 0;
+        for(Endpoint e : candidates) if(e != other_than) total += e.weight;
+
+        int r = ThreadLocalRandom.current().nextInt(total);
+        for(Endpoint e : candidates){
+            if(e == other_than) continue;
+            if((r -= e.weight) < 0) return e;
+        }
+
+        // not reached
+        return candidates.get(0);
+    }
+
+    /**
+     * Must be called before each call to the endpoint
+     */
+    public void call_started(Endpoint endpoint){
+        endpoint.call_started();
+    }
+
+    /**
+     * Must be called after each call to the endpoint
+     * 
+     * @param endpoint
+     * @param nanos, how long the call took
+     * @param error, the error the call failed with, null if it succeeded
+     */
+    public void call_ended(Endpoint endpoint, long nanos, Throwable error){
+        // rejected locally (limiter, bulkhead, breaker), the call never reached the endpoint and its duration says nothing about it
+        if(error instanceof Rejected_Call_Exception){
+            endpoint.call_abandoned();
+            return;
+        }
+
+        int failures = endpoint.call_ended(nanos, error != null && is_failure(error), alpha);
+        if(failures >= max_failures) eject(endpoint);
+    }
+
+    /**
+     * Must be called after a call to the endpoint that was cancelled, for example the slower of two hedged calls, 
+     * its result says nothing about the endpoint
+     */
+    public void call_abandoned(Endpoint endpoint){
+        endpoint.call_abandoned();
+    }
+
+    private synchronized void eject(Endpoint endpoint){
+        long now = System.nanoTime();
+        if(endpoint.is_ejected(now)) return;
+
+        int ejected = 0;
+        for(Endpoint e : endpoints) if(e.is_ejected(now)) ejected++;
+        if((ejected +1) * 2 > endpoints.size()) return;
+
+        long ejection_nanos = ejection_millis * 1000000L;
+        endpoint.forgive(now, 10 * ejection_nanos);
+        endpoint.eject(now + ejection_nanos * Math.min(10, endpoint.ejections +1));
+        if(metrics != null) metrics.count("endpoint.ejected");
+        Log.log(1, "Endpoint " + endpoint + " ejected after " + max_failures + " failures in a row", null);
+    }
+
+    /**
+     * @param e
+     * @return whether the error means the endpoint is not healthy: client errors (HTTP 4xx except 429, not found
+     * included) and locally rejected calls don't
+     */
+    public static boolean is_failure(Throwable e){
+        if(e instanceof Rejected_Call_Exception) return false;
+
+        // 404 and 410 as HttpURLConnection reports them when the status was not carried over (see HTTP_Status_Exception)
+        if(e instanceof FileNotFoundException) return false;
+        if(!(e instanceof IOException)) return true;
+
+        int code = Retry_Policy.http_status((IOException)e);
+        return code == 0 || code >= 500 || code == 429;
+    }
+
+    /**
+     * @param e
+     * @return whether the call can be made again on another endpoint whatever the operation, because the request 
+     * never reached the endpoint
+     */
+    public static boolean is_safe_to_fail_over(Throwable e){
+        return Error_Category.of(e) == Error_Category.connection;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import identity.plus.api.metrics.Latency_Histogram;
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.util.Call_Handle;
+
+/**
+ * When the identity inquiries of an API Channel are hedged: if the first attempt has not answered within the 
+ * threshold, a second attempt is sent on another connection and the first answer wins, the other attempt is cancelled.
+ * 
+ * The threshold is learned from the latencies of the inquiries made through the channel: every refresh interval
+ * it is set to the given percentile of the latencies observed during the interval, and the observation starts over.
+ * Until enough latencies were observed, no hedging takes place. The extra load is bounded by a budget, the same token
+ * bucket as for retries, for example 5% of the inquiries.
+ */
+public class Hedging_Policy {
+    /**
+     * One attempt of a hedged call
+     */
+    @FunctionalInterface
+    public interface Attempt<T>{
+        /**
+         * @param handle, the call must be abandoned when the handle is cancelled
+         * @return
+         * @throws IOException
+         */
+        public T call(Call_Handle handle) throws IOException;
+    }
+
+    /**
+     * The percentile of the inquiry latency after which a second attempt is sent, for example 95
+     */
+    public final double percentile;
+
+    /**
+     * The threshold is never lower than this, in milliseconds
+     */
+    public final long min_delay_millis;
+
+    /**
+     * How often the threshold is re-computed, in milliseconds
+     */
+    public final long refresh_millis;
+
+    /**
+     * How many latencies must be observed in an interval to compute the threshold
+     */
+    public final int min_samples;
+
+    /**
+     * Limits the hedged attempts to a fraction of the inquiries
+     */
+    public final Retry_Budget budget;
+
+    /**
+     * Runs the attempts, so that the caller can wait for the first of them to answer
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread t = new Thread(r, "identity-plus-hedging");
+            t.setDaemon(true);
+            return t;
+    });
+
+    private final Latency_Histogram window = new Latency_Histogram();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private volatile long threshold_nanos = Long.MAX_VALUE;
+    private volatile long next_refresh;
+
+    /**
+     * Constructor
+     * 
+     * @param percentile, the percentile of the inquiry latency after which a second attempt is sent
+     * @param min_delay_millis, the minimum delay before a second attempt
+     * @param refresh_millis, how often the threshold is re-computed
+     * @param min_samples, how many latencies must be observed in an interval to compute the threshold
+     * @param budget, limits the extra load
+     */
+    public Hedging_Policy(double percentile, long min_delay_millis, long refresh_millis, int min_samples, Retry_Budget budget){
+        if(percentile <= 0 || percentile >= 100) throw new IllegalArgumentException("The percentile must be between 0 and 100");
+        if(budget == null) throw new IllegalArgumentException("Hedging must be limited by a budget");
+
+        this.percentile = percentile;
+        this.min_delay_millis = Math.max(0, min_delay_millis);
+        this.refresh_millis = Math.max(1, refresh_millis);
+        this.min_samples = Math.max(1, min_samples);
+        this.budget = budget;
+        this.next_refresh = System.nanoTime() + this.refresh_millis * 1000000L;
+    }
+
+    /**
+     * @return hedging after the p95 latency, at least 5ms, re-computed every 10 seconds from at least 100 inquiries, 
+     * at most 5% extra inquiries
+     */
+    public static Hedging_Policy default_policy(){
+        return new Hedging_Policy(95, 5, 10000, 100, new Retry_Budget(0.05, 10));
+    }
+
+    /**
+     * Observes the latency of an attempt that answered
+     * 
+     * @param nanos
+     */
+    public void record(long nanos){
+        window.record_nanos(nanos);
+    }
+
+    /**
+     * @return after how long a second attempt is sent, in nanoseconds, Long.MAX_VALUE if not yet known
+     */
+    public long threshold_nanos(){
+        long now = System.nanoTime();
+        if(now - next_refresh >= 0 && refreshing.compareAndSet(false, true)){
+            try{
+                if(window.count() >= min_samples){
+                    threshold_nanos = Math.max(min_delay_millis * 1000000L, window.percentile(percentile) * 1000L);
+                    window.reset();
+                }
+                next_refresh = now + refresh_millis * 1000000L;
+            }
+            finally{
+                refreshing.set(false);
+            }
+        }
+
+        return threshold_nanos;
+    }
+
+    /**
+     * Makes the call, and a second attempt if the first did not answer within the threshold and the budget allows it.
+     * The first successful answer is returned and the other attempt is cancelled. If both attempts fail, the last 
+     * error is thrown. The counters hedge.sent, hedge.won (the second attempt answered first) and hedge.budget-exhausted
+     * are kept in the metrics.
+     * 
+     * @param attempt
+     * @param deadline, no second attempt is sent if the deadline would pass before
+     * @param metrics
+     * @return
+     * @throws IOException
+     */
+    public <T> T call(Attempt<T> attempt, Deadline deadline, Metrics_Recorder metrics) throws IOException{
+        budget.on_call();
+
+        long threshold = threshold_nanos();
+        if(threshold >= deadline.remaining_nanos()) return timed(attempt, new Call_Handle());
+
+        ExecutorCompletionService<T> attempts = new ExecutorCompletionService<>(executor);
+        Call_Handle first = new Call_Handle(), second = null;
+
+        try{
+            Future<T> first_attempt = attempts.submit(() -> timed(attempt, first));
+            Future<T> done = attempts.poll(threshold, TimeUnit.NANOSECONDS);
+            if(done != null) return result(done);
+
+            if(!budget.try_acquire()){
+                metrics.count("hedge.budget-exhausted");
+                return result(first_attempt);
+            }
+
+            metrics.count("hedge.sent");
+            Call_Handle hedge = second = new Call_Handle();
+            attempts.submit(() -> timed(attempt, hedge));
+
+            IOException error = null;
+            for(int i = 0; i < 2; i++){
+                done = attempts.take();
+                try{
+                    T result = result(done);
+                    if(done != first_attempt) metrics.count("hedge.won");
+                    return result;
+                }
+                catch(IOException e){
+                    error = e;
+                }
+            }
+
+            throw error;
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the identity+ API");
+        }
+        finally{
+            first.cancel();
+            if(second != null) second.cancel();
+        }
+    }
+
+    private <T> T timed(Attempt<T> attempt, Call_Handle handle) throws IOException{
+        long start = System.nanoTime();
+        T result = attempt.call(handle);
+        record(System.nanoTime() - start);
+
+        return result;
+    }
+
+    private static <T> T result(Future<T> done) throws IOException, InterruptedException{
+        try{
+            return done.get();
+        }
+        catch(ExecutionException e){
+            if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the threads of the policy, attempts in progress are completed
+     */
+    public void shutdown(){
+        executor.shutdown();
+    }
+}
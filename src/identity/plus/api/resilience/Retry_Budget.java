@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting retries to a fraction of the calls, so that when the service is in trouble the clients
+ * do not multiply the load with retries (retry storm).
+ * 
+ * Each call deposits retry_ratio tokens, each retry withdraws one. The bucket starts full and holds at most
+ * max_tokens, so occasional failures on a quiet channel can always be retried.
+ */
+public class Retry_Budget {
+    // tokens are kept in thousandths
+    private static final long UNIT = 1000;
+
+    private final AtomicLong tokens;
+    private final long deposit;
+    private final long capacity;
+
+    /**
+     * Constructor
+     * 
+     * @param retry_ratio, the fraction of the calls that can be retried, for example 0.1 for 10%
+     * @param max_tokens, the maximum number of retries that can be saved up
+     */
+    public Retry_Budget(double retry_ratio, int max_tokens){
+        if(retry_ratio < 0 || max_tokens < 1) throw new IllegalArgumentException("The ratio must not be negative and the budget must hold at least one token");
+
+        this.deposit = (long)(retry_ratio * UNIT);
+        this.capacity = max_tokens * UNIT;
+        this.tokens = new AtomicLong(capacity);
+    }
+
+    /**
+     * Records a call, which deposits retry_ratio tokens
+     */
+    public void on_call(){
+        if(deposit == 0) return;
+
+        long t;
+        do{
+            t = tokens.get();
+            if(t >= capacity) return;
+        }
+        while(!tokens.compareAndSet(t, Math.min(capacity, t + deposit)));
+    }
+
+    /**
+     * Withdraws a token for a retry
+     * 
+     * @return false if the budget is exhausted, the call must not be retried
+     */
+    public boolean try_acquire(){
+        long t;
+        do{
+            t = tokens.get();
+            if(t < UNIT) return false;
+        }
+        while(!tokens.compareAndSet(t, t - UNIT));
+
+        return true;
+    }
+
+    /**
+     * @return the number of retries currently available
+     */
+    public double available(){
+        return (double)tokens.get() / UNIT;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.resilience;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import identity.plus.api.metrics.Error_Category;
+import identity.plus.api.util.HTTP_Status_Exception;
+
+/**
+ * When and how often the idempotent calls of an API Channel are retried.
+ * 
+ * The delay between attempts follows the "decorrelated jitter" backoff: each delay is random between the base delay and 
+ * three times the previous delay, capped at max_delay. It spreads the retries of many clients in time while still backing off.
+ * Retries are also bounded by the retry budget and by the deadline of the call: a retry is not attempted if the backoff
+ * delay alone would exceed the time left.
+ */
+public class Retry_Policy {
+    /**
+     * No retries
+     */
+    public static final Retry_Policy NONE = new Retry_Policy(1, 0, 0, 0, null);
+
+    /**
+     * The maximum number of attempts, including the first one
+     */
+    public final int max_attempts;
+
+    /**
+     * The minimum delay between attempts, in milliseconds
+     */
+    public final long base_delay_millis;
+
+    /**
+     * The maximum delay between attempts, in milliseconds
+     */
+    public final long max_delay_millis;
+
+    /**
+     * The time budget of a call including all its attempts, in milliseconds, 0 for no limit. 
+     * An explicit deadline given to the call takes precedence if it is earlier
+     */
+    public final long deadline_millis;
+
+    /**
+     * Shared by all the calls using the policy, null for no budget
+     */
+    public final Retry_Budget budget;
+
+    /**
+     * Constructor
+     * 
+     * @param max_attempts, including the first one
+     * @param base_delay_millis
+     * @param max_delay_millis
+     * @param deadline_millis, the time budget of a call, 0 for no limit
+     * @param budget, null for no budget
+     */
+    public Retry_Policy(int max_attempts, long base_delay_millis, long max_delay_millis, long deadline_millis, Retry_Budget budget){
+        if(max_attempts < 1) throw new IllegalArgumentException("At least one attempt must be made");
+
+        this.max_attempts = max_attempts;
+        this.base_delay_millis = Math.max(0, base_delay_millis);
+        this.max_delay_millis = Math.max(this.base_delay_millis, max_delay_millis);
+        this.deadline_millis = deadline_millis;
+        this.budget = budget;
+    }
+
+    /**
+     * @return 3 attempts, 50ms to 1s backoff, 2s per call, retries limited to 10% of the calls
+     */
+    public static Retry_Policy default_policy(){
+        return new Retry_Policy(3, 50, 1000, 2000, new Retry_Budget(0.1, 10));
+    }
+
+    /**
+     * @param previous_delay_millis, the previous delay, 0 before the first retry
+     * @return the delay before the next attempt
+     */
+    public long next_delay(long previous_delay_millis){
+        long upper = Math.max(base_delay_millis, previous_delay_millis * 3);
+        long delay = upper > base_delay_millis ? ThreadLocalRandom.current().nextLong(base_delay_millis, upper +1) : base_delay_millis;
+
+        return Math.min(max_delay_millis, delay);
+    }
+
+    /**
+     * Decides if a failed attempt is worth retrying: timeouts, connection problems, connections reset or closed 
+     * before the response was complete, overloaded or unavailable service (HTTP 429, 502, 503, 504). TLS and parsing 
+     * problems, other HTTP errors (404 included) and other I/O errors are not transient.
+     * 
+     * @param e
+     * @return
+     */
+    public boolean is_retryable(IOException e){
+        switch(Error_Category.of(e)){
+            case timeout:
+            case connection:
+                return true;
+
+            case other:
+                return e instanceof SocketException || e instanceof EOFException;
+
+            case http:
+                int code = http_status(e);
+                return code == 429 || code == 502 || code == 503 || code == 504;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param e
+     * @return the HTTP status of the response the call failed with, 0 if the call failed before receiving one
+     */
+    public static int http_status(IOException e){
+        return e instanceof HTTP_Status_Exception ? ((HTTP_Status_Exception)e).status : 0;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import identity.plus.api.API_Channel;
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Local_User_Information;
+import identity.plus.api.communication.Local_User_Reference;
+import identity.plus.api.communication.Outcome;
+import identity.plus.api.util.Log;
+
+/**
+ * Synchronizes a user base with identity+ in bulk: registers, connects or disconnects the local users read from a source,
+ * with a bounded number of parallel calls through the API channel.
+ * 
+ * The source is read lazily and at most twice the parallelism records are in flight, so the memory does not depend on the
+ * size of the user base. Progress is checkpointed to a file: the checkpoint is the number of records from the beginning of the 
+ * source that were fully processed. A sync restarted with the same source and checkpoint file skips those records.
+ * Records after the checkpoint which were already processed before the restart are sent again, the operations are idempotent.
+ * The checkpoint is also written when the run ends abnormally.
+ * 
+ * A record whose call failed (I/O or runtime error, as opposed to an answer from identity+) is appended to the reject file,
+ * in the JSON lines format, before the checkpoint can move past it. The reject file is kept, it can be replayed as a source
+ * with format=json once the cause of the failures is fixed.
+ * 
+ * Usage: Bulk_User_Sync name=value ..., with the following parameters:
+ *     endpoint, key-store, key-store-password, trust-store   the API Channel parameters (see API_Channel constructor)
+ *     source              the file to read the users from
+ *     format              csv or json (JSON lines), csv by default (see Sync_Record for the formats)
+ *     parallelism         the number of concurrent calls, 16 by default
+ *     checkpoint          the checkpoint file, source + ".checkpoint" by default
+ *     rejects             the reject file, checkpoint + ".rejects" by default
+ */
+public class Bulk_User_Sync {
+    /**
+     * The counts of a sync run
+     */
+    public static class Report {
+        /**
+         * Records skipped because they were processed in a previous run
+         */
+        public long skipped;
+
+        /**
+         * Records processed in this run, including the failed ones
+         */
+        public long processed;
+
+        /**
+         * Records that could not be read
+         */
+        public long malformed;
+
+        /**
+         * Records for which the call failed
+         */
+        public long failed;
+
+        /**
+         * The answers of identity+, by outcome
+         */
+        public final Map<Outcome, Long> outcomes = new EnumMap<>(Outcome.class);
+
+        public long elapsed_nanos;
+
+        /**
+         * The file the failed records were written to, null if there were none
+         */
+        public File rejects;
+
+        public void print(PrintStream out){
+            out.printf("%d records processed in %.1f s (%.1f/s), %d skipped, %d malformed, %d failed%n", processed, elapsed_nanos / 1e9, processed * 1e9 / Math.max(1, elapsed_nanos), skipped, malformed, failed);
+            if(rejects != null) out.printf("    failed records were written to %s%n", rejects);
+            for(Map.Entry<Outcome, Long> e : outcomes.entrySet()) out.printf("    %-80s %d%n", e.getKey(), e.getValue());
+        }
+    }
+
+    private final API_Channel api_channel;
+    private final int parallelism;
+    private final File checkpoint;
+    private final long checkpoint_every;
+    private final File rejects;
+
+    /**
+     * Constructor, the failed records are written next to the checkpoint (checkpoint + ".rejects")
+     * 
+     * @param api_channel, the channel to make the calls through
+     * @param parallelism, the number of concurrent calls
+     * @param checkpoint, the checkpoint file, null to always start from the beginning
+     * @param checkpoint_every, how many processed records between checkpoints
+     */
+    public Bulk_User_Sync(API_Channel api_channel, int parallelism, File checkpoint, long checkpoint_every){
+        this(api_channel, parallelism, checkpoint, checkpoint_every, checkpoint != null ? new File(checkpoint.getPath() + ".rejects") : null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param api_channel, the channel to make the calls through
+     * @param parallelism, the number of concurrent calls
+     * @param checkpoint, the checkpoint file, null to always start from the beginning
+     * @param checkpoint_every, how many processed records between checkpoints
+     * @param rejects, the file the failed records are appended to, null to only report them to processed()
+     */
+    public Bulk_User_Sync(API_Channel api_channel, int parallelism, File checkpoint, long checkpoint_every, File rejects){
+        if(parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+
+        this.api_channel = api_channel;
+        this.parallelism = parallelism;
+        this.checkpoint = checkpoint;
+        this.checkpoint_every = Math.max(1, checkpoint_every);
+        this.rejects = rejects;
+    }
+
+    /**
+     * Runs the sync, resuming from the checkpoint if there is one. The checkpoint is removed once the whole source was processed.
+     * 
+     * @param source
+     * @return the counts of this run
+     * @throws IOException if the checkpoint or the reject file can not be read or written
+     * @throws InterruptedException if the calling thread was interrupted, the checkpoint reflects the progress so far
+     */
+    public Report run(Iterator<Sync_Record> source) throws IOException, InterruptedException{
+        Report report = new Report();
+        long start = System.nanoTime();
+
+        // positions count every attempt to read from the source, malformed records included
+        long position = 0;
+        long resume_from = read_checkpoint();
+        for(; position < resume_from && skip(source); position++) report.skipped++;
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, (Runnable r) -> {
+                Thread t = new Thread(r, "identity-plus-user-sync");
+                t.setDaemon(true);
+                return t;
+        });
+        ExecutorCompletionService<Result> completed = new ExecutorCompletionService<>(workers);
+
+        // the positions completed beyond the watermark, at most 2 x parallelism of them
+        TreeSet<Long> done = new TreeSet<>();
+        long[] watermark = {position};
+        long last_checkpoint = position;
+        int in_flight = 0;
+        boolean finished = false;
+
+        try{
+            while(true){
+                Object next = next(source, report);
+                if(next == End.end) break;
+
+                long p = position++;
+                if(next == End.malformed){
+                    complete(p, done, watermark);
+                    continue;
+                }
+
+                if(in_flight == 2 * parallelism){
+                    collect(completed.take(), report, done, watermark);
+                    in_flight--;
+                }
+
+                Sync_Record record = (Sync_Record)next;
+                completed.submit(() -> call(p, record));
+                in_flight++;
+
+                if(watermark[0] - last_checkpoint >= checkpoint_every){
+                    write_checkpoint(watermark[0]);
+                    last_checkpoint = watermark[0];
+                }
+            }
+
+            for(; in_flight > 0; in_flight--) collect(completed.take(), report, done, watermark);
+
+            if(checkpoint != null) Files.deleteIfExists(checkpoint.toPath());
+            finished = true;
+        }
+        finally{
+            workers.shutdownNow();
+            if(!finished) write_checkpoint(watermark[0]);
+            report.elapsed_nanos = System.nanoTime() - start;
+        }
+
+        return report;
+    }
+
+    private enum End{ end, malformed }
+
+    private static Object next(Iterator<Sync_Record> source, Report report){
+        try{
+            return source.hasNext() ? source.next() : End.end;
+        }
+        catch(IllegalArgumentException e){
+            report.malformed++;
+            Log.log(2, e.getMessage(), null);
+            return End.malformed;
+        }
+    }
+
+    private static boolean skip(Iterator<Sync_Record> source){
+        try{
+            if(!source.hasNext()) return false;
+            source.next();
+        }
+        catch(IllegalArgumentException e){
+            // malformed, it was reported in the run that got past it
+        }
+
+        return true;
+    }
+
+    private static final class Result{
+        private final long position;
+        private final Sync_Record record;
+        private final API_Response response;
+        private final Exception error;
+
+        private Result(long position, Sync_Record record, API_Response response, Exception error){
+            this.position = position;
+            this.record = record;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    private Result call(long position, Sync_Record record){
+        try{
+            return new Result(position, record, dispatch(record), null);
+        }
+        catch(IOException | RuntimeException e){
+            return new Result(position, record, null, e);
+        }
+    }
+
+    /**
+     * Makes the call for one record, the same way Identity_Plus_API does for a single user
+     * 
+     * @param record
+     * @return
+     * @throws IOException
+     */
+    protected API_Response dispatch(Sync_Record record) throws IOException{
+        // same bounds as Identity_Plus_API: at least 10 tokens, being a user means trust, at most 2500
+        BigInteger tokens = BigInteger.valueOf(Math.max(10, Math.min(record.tokens_of_trust, 2500)));
+        BigInteger age = BigInteger.valueOf(record.account_age);
+
+        switch(record.action){
+            case register:
+                return api_channel.put(new Local_User_Information(null, "+", record.local_user_name, age, tokens));
+
+            case connect:
+                return api_channel.put(new Local_User_Information(null, record.serial_number, record.local_user_name, age, tokens));
+
+            default:
+                return api_channel.delete(new Local_User_Reference(record.local_user_name));
+        }
+    }
+
+    /**
+     * Called on the thread running the sync once a record was processed, override it to keep track of individual 
+     * records, by default failures are logged
+     * 
+     * @param record
+     * @param response, null if the call failed
+     * @param error, null if the call succeeded
+     */
+    protected void processed(Sync_Record record, API_Response response, Exception error){
+        if(error != null) Log.log(2, "Unable to " + record.action + " " + record.local_user_name, error);
+    }
+
+    private void collect(Future<Result> future, Report report, TreeSet<Long> done, long[] watermark) throws InterruptedException, IOException{
+        Result r;
+        try{
+            r = future.get();
+        }
+        catch(ExecutionException e){
+            // the tasks catch their own exceptions, only errors end up here
+            throw new RuntimeException(e.getCause());
+        }
+
+        report.processed++;
+        if(r.error != null){
+            report.failed++;
+            reject(r.record, report);
+        }
+        else report.outcomes.merge(r.response.outcome, 1L, Long::sum);
+
+        processed(r.record, r.response, r.error);
+        complete(r.position, done, watermark);
+    }
+
+    private void reject(Sync_Record record, Report report) throws IOException{
+        if(rejects == null) return;
+
+        // written before the position is completed, so the checkpoint never skips a record that is not in the file
+        Files.write(rejects.toPath(), (record.json_line() + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        report.rejects = rejects;
+    }
+
+    private static void complete(long position, TreeSet<Long> done, long[] watermark){
+        done.add(position);
+        while(!done.isEmpty() && done.first() == watermark[0]){
+            done.pollFirst();
+            watermark[0]++;
+        }
+    }
+
+    private long read_checkpoint() throws IOException{
+        if(checkpoint == null || !checkpoint.exists()) return 0;
+        return Long.parseLong(new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.UTF_8).trim());
+    }
+
+    private void write_checkpoint(long position) throws IOException{
+        if(checkpoint == null) return;
+
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        Files.write(temp.toPath(), Long.toString(position).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> p = new HashMap<>();
+        for(String arg : args){
+            int idx = arg.indexOf('=');
+            if(idx < 0) throw new IllegalArgumentException("Parameters must be formatted as name=value, found: " + arg);
+            p.put(arg.substring(0, idx).trim(), arg.substring(idx +1).trim());
+        }
+
+        String source = p.get("source");
+        if(source == null) throw new IllegalArgumentException("The source must be specified");
+
+        API_Channel channel = new API_Channel(p.get("endpoint"), p.get("key-store"), p.get("key-store-password"), p.get("trust-store"));
+        String checkpoint = p.getOrDefault("checkpoint", source + ".checkpoint");
+        Bulk_User_Sync sync = new Bulk_User_Sync(channel, Integer.parseInt(p.getOrDefault("parallelism", "16")), new File(checkpoint), 1000, new File(p.getOrDefault("rejects", checkpoint + ".rejects")));
+
+        try(Reader reader = Files.newBufferedReader(new File(source).toPath(), StandardCharsets.UTF_8)){
+            Report report = sync.run("json".equals(p.get("format")) ? Sync_Record.json_lines(reader) : Sync_Record.csv(reader));
+            report.print(System.out);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.sync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+
+/**
+ * One user to synchronize with identity+, as read from the source
+ * 
+ * The CSV format is: action,local-user-name,serial-number,account-age,tokens-of-trust with an optional header line
+ * starting with "action". Fields can be double quoted, a double quote inside a quoted field is written twice.
+ * 
+ * The JSON lines format is one object per line with the same names, for example:
+ * {"action": "connect", "local-user-name": "jdoe", "serial-number": "1234", "account-age": 365, "tokens-of-trust": 100}
+ * 
+ * The serial number is only needed to connect, the age (in days) and tokens only to register and connect.
+ */
+public class Sync_Record {
+    public enum Action {
+        /**
+         * Creates an identity+ identity for the local user (see Identity_Plus_API.register_user)
+         */
+        register,
+
+        /**
+         * Connects the identity+ identity of the certificate to the local user (see Identity_Plus_API.connect_with_user)
+         */
+        connect,
+
+        /**
+         * Disconnects the local user from its identity+ identity (see Identity_Plus_API.disconnect_local_user)
+         */
+        disconnect
+    }
+
+    /**
+     * The position of the record in the source, counting from 0
+     */
+    public final long index;
+
+    public final Action action;
+    public final String local_user_name;
+    public final String serial_number;
+    public final int account_age;
+    public final int tokens_of_trust;
+
+    public Sync_Record(long index, Action action, String local_user_name, String serial_number, int account_age, int tokens_of_trust){
+        if(action == null || local_user_name == null || local_user_name.length() == 0) throw new IllegalArgumentException("Action and local user name must be specified, record " + index);
+        if(action == Action.connect && (serial_number == null || serial_number.length() == 0)) throw new IllegalArgumentException("Serial number must be specified to connect, record " + index);
+
+        this.index = index;
+        this.action = action;
+        this.local_user_name = local_user_name;
+        this.serial_number = serial_number;
+        this.account_age = account_age;
+        this.tokens_of_trust = tokens_of_trust;
+    }
+
+    /**
+     * @return the record in the JSON lines format, without the line end
+     */
+    public String json_line(){
+        JsonObjectBuilder o = Json.createObjectBuilder().add("action", action.name()).add("local-user-name", local_user_name);
+        if(serial_number != null) o.add("serial-number", serial_number);
+
+        return o.add("account-age", account_age).add("tokens-of-trust", tokens_of_trust).build().toString();
+    }
+
+    /**
+     * Reads the records of a CSV source lazily, one line at a time
+     * 
+     * @param source
+     * @return
+     */
+    public static Iterator<Sync_Record> csv(Reader source){
+        return new Line_Iterator(source){
+                @Override
+                protected Sync_Record parse(long index, String line) {
+                    List<String> f = split_csv(line);
+                    if(index == 0 && f.size() > 0 && f.get(0).equalsIgnoreCase("action")) return null;
+
+                    return new Sync_Record(index, Action.valueOf(f.get(0).trim()), f.get(1).trim(), field(f, 2), number(field(f, 3)), number(field(f, 4)));
+                }
+        };
+    }
+
+    /**
+     * Reads the records of a JSON lines source lazily, one line at a time
+     * 
+     * @param source
+     * @return
+     */
+    public static Iterator<Sync_Record> json_lines(Reader source){
+        return new Line_Iterator(source){
+                @Override
+                protected Sync_Record parse(long index, String line) {
+                    try(JsonReader reader = Json.createReader(new StringReader(line))){
+                        JsonObject o = reader.readObject();
+                        return new Sync_Record(index, Action.valueOf(o.getString("action")), o.getString("local-user-name"), o.getString("serial-number", null), o.getInt("account-age", 0), o.getInt("tokens-of-trust", 0));
+                    }
+                }
+        };
+    }
+
+    private static String field(List<String> fields, int i){
+        if(i >= fields.size()) return null;
+
+        String f = fields.get(i).trim();
+        return f.length() == 0 ? null : f;
+    }
+
+    private static int number(String value){
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+    private static List<String> split_csv(String line){
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for(int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+
+            if(quoted){
+                if(c != '"') field.append(c);
+                else if(i +1 < line.length() && line.charAt(i +1) == '"') field.append(line.charAt(++i));
+                else quoted = false;
+            }
+            else if(c == '"') quoted = true;
+            else if(c == ','){
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else field.append(c);
+        }
+
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Reads one record per non empty line, the index is the number of the record (blank lines and headers are not counted)
+     */
+    private abstract static class Line_Iterator implements Iterator<Sync_Record>{
+        private final BufferedReader reader;
+        private Sync_Record next;
+        private long index = 0;
+
+        private Line_Iterator(Reader source){
+            this.reader = source instanceof BufferedReader ? (BufferedReader)source : new BufferedReader(source);
+        }
+
+        protected abstract Sync_Record parse(long index, String line);
+
+        @Override
+        public boolean hasNext() {
+            try{
+                for(String line; next == null && (line = reader.readLine()) != null; ){
+                    if(line.trim().length() == 0) continue;
+
+                    try{
+                        next = parse(index, line);
+                    }
+                    catch(RuntimeException e){
+                        // the line counts as a record, so that the positions stay the same when the source is read again
+                        throw new IllegalArgumentException("Malformed record " + index++ + ": " + line, e);
+                    }
+
+                    if(next != null) index++;
+                }
+
+                return next != null;
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Sync_Record next() {
+            if(!hasNext()) throw new NoSuchElementException();
+
+            Sync_Record r = next;
+            next = null;
+            return r;
+        }
+    }
+}
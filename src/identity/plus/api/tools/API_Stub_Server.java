@@ -0,0 +1,388 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Identity_Inquiry;
+import identity.plus.api.communication.Identity_Profile;
+import identity.plus.api.communication.Outcome;
+import identity.plus.api.communication.Simple_Response;
+
+/**
+ * An in-process, mutually authenticated HTTPS server on the loopback interface which speaks the identity+ API
+ * protocols, meant for tests, benchmarks and load tests, no data is stored.
+ * 
+ * The envelope protocol (API_Channel, under endpoint()): it receives {"Request-Name": {...}} and answers with
+ * {"Response-Name": {...}}. Identity inquiries are answered with a valid Identity-Profile, every other request 
+ * with an acknowledging Simple-Response.
+ * 
+ * The V2 protocol (V2, under v2_endpoint()): GET /v2/operation?p0=...&p1=... and POST /v2/operation with a JSON 
+ * body. The status of the answer is taken from the behavior of the operation, 2xx answers echo the operation and
+ * its parameters as JSON.
+ * 
+ * The behavior (latency, injected failures and dropped connections) can be scripted per operation, the operation 
+ * being the request name for the envelope protocol (e.g. Identity-Inquiry, "ping" for pings) and the path element 
+ * after /v2/ for V2. The overall throughput can be limited, requests beyond the limit queue up to a given time and 
+ * are rejected with 429 afterwards.
+ */
+public class API_Stub_Server {
+    static{
+        // the JDK server leaves Nagle's algorithm on by default, which adds a delayed ACK (~40ms) to every response
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * The operation name of envelope protocol pings (empty body)
+     */
+    public static final String PING = "ping";
+
+    public final Loopback_Credentials credentials;
+
+    /**
+     * The behavior of operations without a specific one
+     */
+    public final Stub_Behavior default_behavior = new Stub_Behavior();
+
+    /**
+     * Requests received, including the failed and rejected ones
+     */
+    public final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Requests answered with an injected failure
+     */
+    public final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Requests for which the connection was dropped
+     */
+    public final AtomicLong disconnects = new AtomicLong();
+
+    /**
+     * Requests rejected because of the throughput limit
+     */
+    public final AtomicLong rejected = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Stub_Behavior> behaviors = new ConcurrentHashMap<>();
+    private final HttpsServer server;
+    private final ExecutorService workers;
+
+    // throughput limit, every request reserves the next free time slot
+    private final AtomicLong next_slot = new AtomicLong();
+    private volatile long slot_nanos = 0;
+    private volatile long max_wait_nanos = 0;
+
+    /**
+     * Starts the stub on an ephemeral port
+     * 
+     * @param credentials
+     * @param threads, the number of threads handling the requests, it is also the maximum concurrency of the stub
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public API_Stub_Server(Loopback_Credentials credentials, int threads) throws IOException, GeneralSecurityException{
+        this.credentials = credentials;
+
+        SSLContext tls_context = credentials.server_tls_context();
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setHttpsConfigurator(new HttpsConfigurator(tls_context){
+                @Override
+                public void configure(HttpsParameters params) {
+                    SSLParameters ssl_params = tls_context.getDefaultSSLParameters();
+                    ssl_params.setNeedClientAuth(true);
+                    params.setSSLParameters(ssl_params);
+                }
+        });
+
+        workers = Executors.newFixedThreadPool(threads, (Runnable r) -> {
+                Thread t = new Thread(r, "identity-plus-stub");
+                t.setDaemon(true);
+                return t;
+        });
+
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return the URL of the API, to be used as API_Channel endpoint
+     */
+    public String endpoint(){
+        return "https://localhost:" + server.getAddress().getPort() + "/api/v1";
+    }
+
+    /**
+     * @return the URL to be used as V2 end point
+     */
+    public String v2_endpoint(){
+        return "https://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the behavior of an operation, creating it as a copy of the default behavior if the operation
+     * had none so far. Changes to the returned object apply to the operation only.
+     * 
+     * @param operation
+     * @return
+     */
+    public Stub_Behavior behavior(String operation){
+        return behaviors.computeIfAbsent(operation, (String k) -> new Stub_Behavior(default_behavior));
+    }
+
+    /**
+     * Limits the throughput of the stub. Requests beyond the limit wait for their turn, if the wait would be longer
+     * than max_wait_millis they are rejected with 429 Too Many Requests
+     * 
+     * @param requests_per_second, 0 or less to remove the limit
+     * @param max_wait_millis
+     */
+    public void limit_throughput(double requests_per_second, long max_wait_millis){
+        max_wait_nanos = max_wait_millis * 1000000L;
+        slot_nanos = requests_per_second > 0 ? (long)(1e9 / requests_per_second) : 0;
+    }
+
+    public void stop(){
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException{
+        requests.incrementAndGet();
+
+        try{
+            byte[] body;
+            try(InputStream in = exchange.getRequestBody()){
+                body = in.readAllBytes();
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            int v2 = path.indexOf("/v2/");
+            String operation = v2 >= 0 ? path.substring(v2 + "/v2/".length()) : envelope_name(body);
+            Stub_Behavior behavior = behaviors.getOrDefault(operation, default_behavior);
+
+            if(!admit()){
+                rejected.incrementAndGet();
+                respond(exchange, 429, "text/plain", "Too many requests".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            long service_time = behavior.service_time();
+            if(service_time > 0) Thread.sleep(service_time);
+
+            if(behavior.disconnect()){
+                disconnects.incrementAndGet();
+                return;
+            }
+
+            if(behavior.fail()){
+                failures.incrementAndGet();
+                respond(exchange, behavior.failure_code, "text/plain", "Injected failure".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            if(v2 >= 0) handle_v2(exchange, operation, behavior, body);
+            else handle_v1(exchange, body);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        finally{
+            // if nothing was sent, this drops the connection
+            exchange.close();
+        }
+    }
+
+    private void handle_v1(HttpExchange exchange, byte[] body) throws IOException{
+        API_Response response;
+        try{
+            JsonObject envelope = null;
+            if(body.length > 0) try(JsonReader reader = Json.createReader(new ByteArrayInputStream(body))){
+                envelope = reader.readObject();
+            }
+
+            response = answer(envelope);
+        }
+        catch(RuntimeException e){
+            response = new Simple_Response(Outcome.ER_0008_Error_Parsing_Request, e.getMessage());
+        }
+
+        respond(exchange, 200, "application/json", response.to_json().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handle_v2(HttpExchange exchange, String operation, Stub_Behavior behavior, byte[] body) throws IOException{
+        int status = behavior.status;
+
+        if(status / 100 == 3){
+            exchange.getResponseHeaders().set("Location", behavior.location);
+            respond(exchange, status, "text/plain", new byte[0]);
+        }
+        else if(status == 423) respond(exchange, status, "text/plain", new byte[0]);
+        else if(status / 100 == 4) respond(exchange, status, "text/plain", ("Impossible request: " + operation).getBytes(StandardCharsets.UTF_8));
+        else if(status / 100 == 5) respond(exchange, status, "text/plain", ("Error processing: " + operation).getBytes(StandardCharsets.UTF_8));
+        else{
+            JsonObject arguments = null;
+            try{
+                if(body.length > 0) try(JsonReader reader = Json.createReader(new ByteArrayInputStream(body))){
+                    arguments = reader.readObject();
+                }
+            }
+            catch(RuntimeException e){
+                respond(exchange, 400, "text/plain", ("Malformed arguments: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            JsonObject answer = answer_v2(operation, query_parameters(exchange.getRequestURI().getRawQuery()), arguments);
+            respond(exchange, status, "application/json", answer.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Computes the answer for a request envelope
+     * 
+     * @param envelope, null for a ping
+     * @return
+     */
+    protected API_Response answer(JsonObject envelope){
+        if(envelope != null && envelope.containsKey(Identity_Inquiry.JSON_NAME)) return new Identity_Profile(Json.createObjectBuilder().add("outcome", Outcome.OK_0001_Subject_anonymous_certificate_valid.name().replace('_', ' ')).build());
+        else return new Simple_Response(Outcome.OK_0000_Acknowledged);
+    }
+
+    /**
+     * Computes the body of a successful V2 answer, by default it echoes the request
+     * 
+     * @param operation
+     * @param parameters, the values of the p0, p1, ... query parameters in index order, missing indexes are skipped
+     * @param arguments, the JSON body of POST requests, null for GET requests
+     * @return
+     */
+    protected JsonObject answer_v2(String operation, List<String> parameters, JsonObject arguments){
+        JsonArrayBuilder p = Json.createArrayBuilder();
+        for(String parameter : parameters) p.add(parameter);
+
+        JsonObjectBuilder answer = Json.createObjectBuilder().add("operation", operation).add("parameters", p);
+        if(arguments != null) answer.add("arguments", arguments);
+
+        return answer.build();
+    }
+
+    /**
+     * @return true if the request may proceed, after waiting for its time slot if the throughput is limited
+     * @throws InterruptedException
+     */
+    private boolean admit() throws InterruptedException{
+        long interval = slot_nanos;
+        if(interval <= 0) return true;
+
+        long now = System.nanoTime();
+        while(true){
+            long previous = next_slot.get();
+            long slot = previous - now > 0 ? previous : now;
+            long wait = slot - now;
+
+            if(wait > max_wait_nanos) return false;
+            if(next_slot.compareAndSet(previous, slot + interval)){
+                if(wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                return true;
+            }
+        }
+    }
+
+    private static String envelope_name(byte[] body){
+        // the request name is the first key of the envelope: {"Request-Name": ...
+        int start = -1;
+        for(int i = 0; i < body.length; i++){
+            if(body[i] == '"'){
+                if(start < 0) start = i +1;
+                else return new String(body, start, i - start, StandardCharsets.UTF_8);
+            }
+        }
+
+        return PING;
+    }
+
+    /**
+     * @return the values of the pN parameters in the order of their index, missing indexes are skipped
+     */
+    private static List<String> query_parameters(String raw_query){
+        TreeMap<Integer, String> parameters = new TreeMap<>();
+        if(raw_query == null) return new ArrayList<>();
+
+        for(String pair : raw_query.split("&")){
+            int idx = pair.indexOf('=');
+            if(idx < 2 || idx > 10 || pair.charAt(0) != 'p' || !pair.substring(1, idx).chars().allMatch(Character::isDigit)) continue;
+
+            parameters.put(Integer.valueOf(pair.substring(1, idx)), URLDecoder.decode(pair.substring(idx +1), StandardCharsets.UTF_8));
+        }
+
+        return new ArrayList<>(parameters.values());
+    }
+
+    private static void respond(HttpExchange exchange, int code, String content_type, byte[] data) throws IOException{
+        exchange.getResponseHeaders().set("Content-Type", content_type);
+        exchange.sendResponseHeaders(code, data.length == 0 ? -1 : data.length);
+        if(data.length > 0) try(OutputStream out = exchange.getResponseBody()){
+            out.write(data);
+        }
+    }
+}
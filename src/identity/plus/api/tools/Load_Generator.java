@@ -0,0 +1,356 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.tools;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import identity.plus.api.API_Channel;
+import identity.plus.api.Object_Of_Intrusion;
+import identity.plus.api.Object_Of_Trust;
+import identity.plus.api.communication.API_Response;
+import identity.plus.api.communication.Identity_Inquiry;
+import identity.plus.api.communication.Intent;
+import identity.plus.api.communication.Intent_Type;
+import identity.plus.api.communication.Intrusion_Report;
+import identity.plus.api.communication.Local_User_Information;
+import identity.plus.api.communication.Trust;
+import identity.plus.api.metrics.Error_Category;
+import identity.plus.api.metrics.Latency_Histogram;
+
+/**
+ * Drives a configurable mix of API calls through an API_Channel and reports latency percentiles and throughput.
+ * 
+ * Two modes are supported:
+ *     closed loop    a fixed number of workers, each making the next call as soon as the previous one returned.
+ *                    It measures the maximum throughput at a given concurrency
+ *     open loop      calls are scheduled at a fixed arrival rate, regardless of how fast they return. The latency is
+ *                    measured from the moment the call was scheduled to start, so that the time spent waiting for a free
+ *                    worker when the service falls behind is accounted for (correction for coordinated omission)
+ *
+ * The calls are made on behalf of a population of synthetic users, chosen at random for each call.
+ * 
+ * Usage: Load_Generator name=value ..., with the following parameters:
+ *     endpoint, key-store, key-store-password, trust-store   the API Channel parameters (see API_Channel constructor)
+ *     stub                   true to start an API_Stub_Server and run against it instead, false by default
+ *     stub-latency           the service time of the stub in milliseconds, 0 by default
+ *     mode                   closed or open, closed by default
+ *     concurrency            the number of workers, 16 by default
+ *     rate                   the arrival rate in calls per second, for the open loop mode, 100 by default
+ *     duration               how long to measure, in seconds, 30 by default
+ *     warmup                 how long to run before measuring, in seconds, 5 by default
+ *     population             the number of synthetic users, 10000 by default
+ *     mix                    the weights of the operations, inquiry:80,trust:5,intrusion:5,intent:5,user-information:5 by default
+ */
+public class Load_Generator {
+    /**
+     * The operations the load is made of
+     */
+    public enum Operation {
+        inquiry, trust, intrusion, intent, user_information
+    }
+
+    /**
+     * The measurements of one operation
+     */
+    public static class Operation_Report {
+        public final Operation operation;
+
+        /**
+         * The time from when the call was meant to start to when it returned. In closed loop mode it is the service time
+         */
+        public final Latency_Histogram response_time = new Latency_Histogram();
+
+        /**
+         * The time from when the call actually started to when it returned
+         */
+        public final Latency_Histogram service_time = new Latency_Histogram();
+
+        /**
+         * Failed calls, by category (indexed by Error_Category ordinal)
+         */
+        public final AtomicLongArray errors = new AtomicLongArray(Error_Category.values().length);
+
+        private Operation_Report(Operation operation){
+            this.operation = operation;
+        }
+
+        public long error_count(){
+            long n = 0;
+            for(int i = 0; i < errors.length(); i++) n += errors.get(i);
+            return n;
+        }
+    }
+
+    /**
+     * The result of a run
+     */
+    public static class Report {
+        public final String mode;
+        public final long duration_nanos;
+        public final Map<Operation, Operation_Report> operations = new EnumMap<>(Operation.class);
+
+        private Report(String mode, long duration_nanos){
+            this.mode = mode;
+            this.duration_nanos = duration_nanos;
+        }
+
+        /**
+         * @return the number of calls made, including the failed ones
+         */
+        public long calls(){
+            long n = 0;
+            for(Operation_Report r : operations.values()) n += r.response_time.count();
+            return n;
+        }
+
+        /**
+         * @return calls per second
+         */
+        public double throughput(){
+            return calls() * 1e9 / duration_nanos;
+        }
+
+        public void print(PrintStream out){
+            out.printf("%s loop, %d calls in %.1f s, %.1f calls/s%n", mode, calls(), duration_nanos / 1e9, throughput());
+            out.printf("%-18s %10s %8s %10s %10s %10s %10s %10s %10s%n", "operation", "calls", "errors", "mean", "p50", "p90", "p99", "p99.9", "max");
+
+            for(Operation_Report r : operations.values()){
+                if(r.response_time.count() == 0) continue;
+                print(out, r.operation.name(), r.response_time, r.error_count());
+                if(mode.equals("open")) print(out, "  (service time)", r.service_time, -1);
+            }
+
+            out.println("latencies in microseconds");
+        }
+
+        private static void print(PrintStream out, String name, Latency_Histogram h, long errors){
+            out.printf("%-18s %10d %8s %10.0f %10d %10d %10d %10d %10d%n", name, h.count(), errors < 0 ? "" : Long.toString(errors), h.mean(), h.percentile(50), h.percentile(90), h.percentile(99), h.percentile(99.9), h.max());
+        }
+    }
+
+    private final API_Channel channel;
+    private final Operation[] weighted_operations;
+    private final int population;
+
+    /**
+     * Constructor
+     * 
+     * @param channel, the channel to make the calls through
+     * @param mix, the relative weight of each operation, operations which are missing are not called
+     * @param population, the number of synthetic users
+     */
+    public Load_Generator(API_Channel channel, Map<Operation, Integer> mix, int population){
+        int total = 0;
+        for(int weight : mix.values()) total += Math.max(0, weight);
+        if(total == 0) throw new IllegalArgumentException("At least one operation must have a positive weight");
+
+        this.channel = channel;
+        this.population = population;
+        this.weighted_operations = new Operation[total];
+
+        int i = 0;
+        for(Map.Entry<Operation, Integer> e : mix.entrySet()) for(int j = 0; j < e.getValue(); j++) weighted_operations[i++] = e.getKey();
+    }
+
+    /**
+     * Runs in closed loop mode
+     * 
+     * @param concurrency, the number of workers
+     * @param warmup_millis, how long to run before measuring
+     * @param duration_millis, how long to measure
+     * @return
+     * @throws InterruptedException
+     */
+    public Report run_closed_loop(int concurrency, long warmup_millis, long duration_millis) throws InterruptedException{
+        return run("closed", concurrency, 0, warmup_millis, duration_millis);
+    }
+
+    /**
+     * Runs in open loop mode. If the workers cannot keep up, the calls fall behind schedule and the delay shows
+     * in the response time
+     * 
+     * @param rate, calls per second
+     * @param concurrency, the maximum number of calls in flight
+     * @param warmup_millis, how long to run before measuring
+     * @param duration_millis, how long to measure
+     * @return
+     * @throws InterruptedException
+     */
+    public Report run_open_loop(double rate, int concurrency, long warmup_millis, long duration_millis) throws InterruptedException{
+        if(rate <= 0) throw new IllegalArgumentException("The arrival rate must be positive");
+        return run("open", concurrency, (long)(1e9 / rate), warmup_millis, duration_millis);
+    }
+
+    private Report run(String mode, int concurrency, long interval_nanos, long warmup_millis, long duration_millis) throws InterruptedException{
+        Report report = new Report(mode, duration_millis * 1000000L);
+        for(Operation o : Operation.values()) report.operations.put(o, new Operation_Report(o));
+
+        long start = System.nanoTime();
+        long measure_from = start + warmup_millis * 1000000L;
+        long end = measure_from + duration_millis * 1000000L;
+
+        // in open loop mode, workers take turns in claiming the next slot of the schedule
+        AtomicLong next_slot = new AtomicLong();
+
+        Thread[] workers = new Thread[concurrency];
+        for(int i = 0; i < concurrency; i++){
+            workers[i] = new Thread(() -> {
+                    while(true){
+                        long intended = interval_nanos > 0 ? start + next_slot.getAndIncrement() * interval_nanos : System.nanoTime();
+                        if(intended - end >= 0) return;
+
+                        long wait = intended - System.nanoTime();
+                        if(wait > 0) try{
+                            Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                        }
+                        catch(InterruptedException e){
+                            return;
+                        }
+
+                        Operation operation = weighted_operations[ThreadLocalRandom.current().nextInt(weighted_operations.length)];
+                        long started = System.nanoTime();
+                        Error_Category error = null;
+
+                        try{
+                            call(operation, ThreadLocalRandom.current().nextInt(population));
+                        }
+                        catch(IOException | RuntimeException e){
+                            error = Error_Category.of(e);
+                        }
+
+                        long finished = System.nanoTime();
+                        if(intended - measure_from < 0) continue;
+
+                        Operation_Report r = report.operations.get(operation);
+                        r.response_time.record_nanos(finished - intended);
+                        r.service_time.record_nanos(finished - started);
+                        if(error != null) r.errors.incrementAndGet(error.ordinal());
+                    }
+            }, "identity-plus-load-" + i);
+
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        for(Thread t : workers) t.join();
+
+        return report;
+    }
+
+    /**
+     * Makes one call of the given operation on behalf of a synthetic user
+     * 
+     * @param operation
+     * @param user, the index of the user in the population
+     * @return
+     * @throws IOException
+     */
+    protected API_Response call(Operation operation, int user) throws IOException{
+        String serial_number = Integer.toString(1000000000 + user);
+        String local_user_name = "load-user-" + user;
+
+        switch(operation){
+            case trust:
+                return channel.put(new Trust(local_user_name, serial_number, null, Object_Of_Trust.transaction));
+
+            case intrusion:
+                return channel.put(new Intrusion_Report(serial_number, Object_Of_Intrusion.policy_violation, "load test", "127.0.0.1", "/load", null, null));
+
+            case intent:
+                return channel.put(new Intent(Intent_Type.bind, local_user_name, null, null, null, "https://localhost/", true));
+
+            case user_information:
+                return channel.put(new Local_User_Information(null, serial_number, local_user_name, BigInteger.valueOf(user % 3650), BigInteger.valueOf(user % 100)));
+
+            default:
+                return channel.get(new Identity_Inquiry(serial_number, null, "127.0.0.1"));
+        }
+    }
+
+    /**
+     * Parses a mix of the form inquiry:80,trust:5,...
+     * 
+     * @param mix
+     * @return
+     */
+    public static Map<Operation, Integer> parse_mix(String mix){
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+
+        for(String entry : mix.split(",")){
+            if(entry.trim().length() == 0) continue;
+
+            int idx = entry.indexOf(':');
+            if(idx < 0) throw new IllegalArgumentException("The mix must be formatted as operation:weight, found: " + entry);
+            weights.put(Operation.valueOf(entry.substring(0, idx).trim().replace('-', '_')), Integer.parseInt(entry.substring(idx +1).trim()));
+        }
+
+        return weights;
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> p = new HashMap<>();
+        for(String arg : args){
+            int idx = arg.indexOf('=');
+            if(idx < 0) throw new IllegalArgumentException("Parameters must be formatted as name=value, found: " + arg);
+            p.put(arg.substring(0, idx).trim(), arg.substring(idx +1).trim());
+        }
+
+        int concurrency = Integer.parseInt(p.getOrDefault("concurrency", "16"));
+        API_Stub_Server stub = null;
+        API_Channel channel;
+
+        if(Boolean.parseBoolean(p.getOrDefault("stub", "false"))){
+            stub = new API_Stub_Server(Loopback_Credentials.generate(), concurrency);
+            stub.default_behavior.latency(Long.parseLong(p.getOrDefault("stub-latency", "0")), 0);
+            channel = stub.credentials.open_channel(stub.endpoint());
+        }
+        else channel = new API_Channel(p.get("endpoint"), p.get("key-store"), p.get("key-store-password"), p.get("trust-store"));
+
+        Load_Generator generator = new Load_Generator(channel, parse_mix(p.getOrDefault("mix", "inquiry:80,trust:5,intrusion:5,intent:5,user-information:5")), Integer.parseInt(p.getOrDefault("population", "10000")));
+        long warmup = Long.parseLong(p.getOrDefault("warmup", "5")) * 1000;
+        long duration = Long.parseLong(p.getOrDefault("duration", "30")) * 1000;
+
+        Report report = "open".equals(p.get("mode")) ? generator.run_open_loop(Double.parseDouble(p.getOrDefault("rate", "100")), concurrency, warmup, duration) : generator.run_closed_loop(concurrency, warmup, duration);
+        report.print(System.out);
+
+        if(stub != null) stub.stop();
+    }
+}
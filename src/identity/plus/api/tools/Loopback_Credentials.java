@@ -0,0 +1,190 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import identity.plus.api.API_Channel;
+import identity.plus.api.Identity_Plus_Utils;
+import identity.plus.api.util.HTTPS_Utils;
+import plus.identity.service.agent.V2;
+
+/**
+ * Throw-away credentials for mutually authenticated TLS over the loopback interface: a self signed
+ * server certificate for localhost and a self signed API client certificate, stored under the alias the
+ * API_Channel expects. 
+ * 
+ * The credentials are generated with the keytool of the running JVM into a temporary directory, they are
+ * meant for testing and benchmarking only.
+ */
+public class Loopback_Credentials {
+    /**
+     * Where the key stores and certificates are written
+     */
+    public final File directory;
+
+    /**
+     * The password of both key stores
+     */
+    public final String password;
+
+    /**
+     * PKCS12 key store with the server certificate and key
+     */
+    public final File server_key_store;
+
+    /**
+     * PEM encoded server certificate, the client uses it as trust store
+     */
+    public final File server_certificate;
+
+    /**
+     * PKCS12 key store with the API client certificate and key
+     */
+    public final File client_key_store;
+
+    /**
+     * PEM encoded client certificate, the server uses it as trust store
+     */
+    public final File client_certificate;
+
+    private Loopback_Credentials(File directory, String password){
+        this.directory = directory;
+        this.password = password;
+        this.server_key_store = new File(directory, "server.p12");
+        this.server_certificate = new File(directory, "server.pem");
+        this.client_key_store = new File(directory, "client.p12");
+        this.client_certificate = new File(directory, "client.pem");
+    }
+
+    /**
+     * Generates a fresh set of credentials in a temporary directory which is deleted when the JVM exits
+     * 
+     * @return
+     * @throws IOException
+     */
+    public static Loopback_Credentials generate() throws IOException{
+        File directory = Files.createTempDirectory("identity-plus-loopback").toFile();
+        Loopback_Credentials c = new Loopback_Credentials(directory, Identity_Plus_Utils.random_letters(16));
+
+        c.keytool("-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "7",
+                  "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                  "-storetype", "PKCS12", "-keystore", c.server_key_store.getPath(), "-storepass", c.password, "-keypass", c.password);
+        c.keytool("-exportcert", "-rfc", "-alias", "server", "-keystore", c.server_key_store.getPath(), "-storepass", c.password, "-file", c.server_certificate.getPath());
+
+        c.keytool("-genkeypair", "-alias", Identity_Plus_Utils.API_CERT_ALIAS, "-keyalg", "RSA", "-keysize", "2048", "-validity", "7",
+                  "-dname", "CN=Loopback API Client", 
+                  "-storetype", "PKCS12", "-keystore", c.client_key_store.getPath(), "-storepass", c.password, "-keypass", c.password);
+        c.keytool("-exportcert", "-rfc", "-alias", Identity_Plus_Utils.API_CERT_ALIAS, "-keystore", c.client_key_store.getPath(), "-storepass", c.password, "-file", c.client_certificate.getPath());
+
+        for(File f : new File[]{c.server_key_store, c.server_certificate, c.client_key_store, c.client_certificate, directory}) f.deleteOnExit();
+
+        return c;
+    }
+
+    private void keytool(String ... arguments) throws IOException{
+        String[] command = new String[arguments.length +1];
+        command[0] = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+
+        Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] output = HTTPS_Utils.drain(p.getInputStream());
+
+        try{
+            if(p.waitFor() != 0) throw new IOException("keytool failed: " + new String(output, "UTF-8"));
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for keytool", e);
+        }
+    }
+
+    /**
+     * @return the TLS context of the server side, it trusts only the loopback client certificate
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public SSLContext server_tls_context() throws IOException, GeneralSecurityException{
+        KeyStore key_store = KeyStore.getInstance("PKCS12");
+        try(FileInputStream in = new FileInputStream(server_key_store)){
+            key_store.load(in, password.toCharArray());
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(key_store, password.toCharArray());
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(HTTPS_Utils.load_trusted_authorities(Files.readAllBytes(client_certificate.toPath())));
+
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+        return ctx;
+    }
+
+    /**
+     * Opens an API Channel towards the given endpoint, authenticated with the loopback client certificate
+     * and trusting only the loopback server certificate
+     * 
+     * @param endpoint
+     * @return
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public API_Channel open_channel(String endpoint) throws IOException, GeneralSecurityException{
+        return new API_Channel(endpoint, client_key_store.getPath(), password, server_certificate.getPath());
+    }
+
+    /**
+     * Opens a V2 client with the client credentials, trusting only the server certificate
+     * 
+     * @param end_point
+     * @return
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public V2 open_v2(String end_point) throws IOException, GeneralSecurityException{
+        try(FileInputStream p12 = new FileInputStream(client_key_store); FileInputStream ca = new FileInputStream(server_certificate)){
+            return new V2(end_point, p12, password, ca);
+        }
+    }
+}
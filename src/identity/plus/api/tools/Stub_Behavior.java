@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.tools;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the API_Stub_Server answers a given operation: how long it takes, how often it fails and, for the V2
+ * protocol, which status it answers with. The fields can be changed while the stub is running, the new values
+ * apply to the requests arriving afterwards.
+ */
+public class Stub_Behavior {
+    /**
+     * The fixed part of the service time, in milliseconds
+     */
+    public volatile long latency_millis = 0;
+
+    /**
+     * A uniformly distributed random amount of milliseconds, between 0 and this value, added to the latency
+     */
+    public volatile long jitter_millis = 0;
+
+    /**
+     * The fraction of requests (0 to 1) which are slow, to simulate tail latency
+     */
+    public volatile double slow_fraction = 0;
+
+    /**
+     * How long the slow requests take, in milliseconds, instead of latency + jitter
+     */
+    public volatile long slow_millis = 0;
+
+    /**
+     * The fraction of requests (0 to 1) which fail with failure_code
+     */
+    public volatile double failure_rate = 0;
+
+    /**
+     * The HTTP status of the injected failures
+     */
+    public volatile int failure_code = 503;
+
+    /**
+     * The fraction of requests (0 to 1) for which the connection is dropped without an answer
+     */
+    public volatile double disconnect_rate = 0;
+
+    /**
+     * The HTTP status of V2 answers: 2xx answers with a JSON body, 3xx redirects to location, 423 blocks, 4xx is an
+     * impossible request and 5xx an error. V1 (envelope protocol) answers are always 200, unless a failure is injected
+     */
+    public volatile int status = 200;
+
+    /**
+     * The Location header of V2 redirects
+     */
+    public volatile String location = "https://identity.plus/";
+
+    public Stub_Behavior(){
+    }
+
+    /**
+     * Copy constructor
+     * 
+     * @param other
+     */
+    public Stub_Behavior(Stub_Behavior other){
+        this.latency_millis = other.latency_millis;
+        this.jitter_millis = other.jitter_millis;
+        this.slow_fraction = other.slow_fraction;
+        this.slow_millis = other.slow_millis;
+        this.failure_rate = other.failure_rate;
+        this.failure_code = other.failure_code;
+        this.disconnect_rate = other.disconnect_rate;
+        this.status = other.status;
+        this.location = other.location;
+    }
+
+    /**
+     * @param latency_millis
+     * @param jitter_millis
+     * @return this behavior, so that calls can be chained
+     */
+    public Stub_Behavior latency(long latency_millis, long jitter_millis){
+        this.latency_millis = latency_millis;
+        this.jitter_millis = jitter_millis;
+        return this;
+    }
+
+    /**
+     * @param slow_fraction
+     * @param slow_millis
+     * @return this behavior, so that calls can be chained
+     */
+    public Stub_Behavior slow(double slow_fraction, long slow_millis){
+        this.slow_fraction = slow_fraction;
+        this.slow_millis = slow_millis;
+        return this;
+    }
+
+    /**
+     * @param failure_rate
+     * @param failure_code
+     * @return this behavior, so that calls can be chained
+     */
+    public Stub_Behavior failures(double failure_rate, int failure_code){
+        this.failure_rate = failure_rate;
+        this.failure_code = failure_code;
+        return this;
+    }
+
+    /**
+     * @param disconnect_rate
+     * @return this behavior, so that calls can be chained
+     */
+    public Stub_Behavior disconnects(double disconnect_rate){
+        this.disconnect_rate = disconnect_rate;
+        return this;
+    }
+
+    /**
+     * @param status
+     * @param location, only relevant for 3xx
+     * @return this behavior, so that calls can be chained
+     */
+    public Stub_Behavior status(int status, String location){
+        this.status = status;
+        if(location != null) this.location = location;
+        return this;
+    }
+
+    /**
+     * @return a random service time, in milliseconds, according to the settings
+     */
+    public long service_time(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(slow_fraction > 0 && random.nextDouble() < slow_fraction) return slow_millis;
+
+        long jitter = jitter_millis;
+        return latency_millis + (jitter > 0 ? random.nextLong(jitter +1) : 0);
+    }
+
+    /**
+     * @return true if a failure should be injected in the current request
+     */
+    public boolean fail(){
+        return failure_rate > 0 && ThreadLocalRandom.current().nextDouble() < failure_rate;
+    }
+
+    /**
+     * @return true if the connection of the current request should be dropped
+     */
+    public boolean disconnect(){
+        return disconnect_rate > 0 && ThreadLocalRandom.current().nextDouble() < disconnect_rate;
+    }
+}
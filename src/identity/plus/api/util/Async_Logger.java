@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the messages over to a background thread through a lock free ring buffer, so that request threads
+ * never wait on the (synchronized) output of the delegate logger.
+ * 
+ * When the ring buffer is full, messages are dropped rather than blocking the caller. The number of dropped
+ * messages is reported by the background thread once it catches up.
+ */
+public class Async_Logger implements Logger {
+    private static final class Record{
+        private final int verbosity_level;
+        private final String message;
+        private final Throwable exception;
+
+        private Record(int verbosity_level, String message, Throwable exception){
+            this.verbosity_level = verbosity_level;
+            this.message = message;
+            this.exception = exception;
+        }
+    }
+
+    private final Logger delegate;
+    private final AtomicReferenceArray<Record> ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long tail = 0;
+    private volatile boolean parked = false;
+    private final Thread writer;
+
+    /**
+     * Constructor
+     * 
+     * @param delegate, the logger that does the actual writing
+     * @param capacity, the size of the ring buffer, it is rounded up to a power of 2
+     */
+    public Async_Logger(Logger delegate, int capacity){
+        this.delegate = delegate;
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) -1) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size -1;
+
+        writer = new Thread(this::drain, "identity-plus-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public boolean is_enabled(int verbosity_level) {
+        return delegate.is_enabled(verbosity_level);
+    }
+
+    @Override
+    public void log(int verbosity_level, String message, Throwable exception) {
+        if(!is_enabled(verbosity_level)) return;
+
+        long seq;
+        do{
+            seq = head.get();
+            if(seq - tail >= ring.length()){
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        while(!head.compareAndSet(seq, seq +1));
+
+        ring.set((int)(seq & mask), new Record(verbosity_level, message, exception));
+        if(parked) LockSupport.unpark(writer);
+    }
+
+    private void drain(){
+        while(true){
+            int slot = (int)(tail & mask);
+            Record r = ring.get(slot);
+
+            if(r == null){
+                long lost = dropped.getAndSet(0);
+                if(lost > 0) delegate.log(0, lost + " log messages were dropped, the logger could not keep up", null);
+
+                // either empty, or the producer claimed the slot and is about to fill it. The flag is raised before 
+                // the slot is checked again, so a producer filling it after the check sees the flag and unparks
+                parked = true;
+                if(ring.get(slot) == null) LockSupport.park(this);
+                parked = false;
+                continue;
+            }
+
+            ring.set(slot, null);
+            tail = tail +1;
+
+            try{
+                delegate.log(r.verbosity_level, r.message, r.exception);
+            }
+            catch(RuntimeException e){
+                // the logger must not die because of a bad message
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allows an HTTPS call made on another thread to be abandoned, for example the slower of two hedged requests.
+ * 
+ * Cancelling a call that is in progress disconnects its connection, the call then fails with an IOException. 
+ * Cancelling a call that has completed does nothing, so the connection of a successful call stays alive for re-use.
+ * 
+ * Calls can also be cancelled automatically, when their deadline passes (see cancel_after).
+ */
+public class Call_Handle {
+    private static final int PENDING = 0, RUNNING = 1, DONE = 2, CANCELLED = 3;
+
+    /**
+     * Cancels the calls which ran out of time, a single thread is enough as cancelling is only a disconnect
+     */
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
+            Thread t = new Thread(r, "identity-plus-call-watchdog");
+            t.setDaemon(true);
+            return t;
+    });
+
+    static{
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private volatile HttpURLConnection connection;
+
+    /**
+     * @param connection
+     * @return false if the call was cancelled before it started. A call that failed over to another 
+     * connection starts again
+     */
+    boolean started(HttpURLConnection connection){
+        this.connection = connection;
+        return state.compareAndSet(PENDING, RUNNING) || state.get() == RUNNING;
+    }
+
+    void finished(){
+        state.compareAndSet(RUNNING, DONE);
+    }
+
+    /**
+     * Abandons the call, unless it has already completed
+     * 
+     * @return true if the call was cancelled
+     */
+    public boolean cancel(){
+        for(int s = state.get(); s == PENDING || s == RUNNING; s = state.get()){
+            if(state.compareAndSet(s, CANCELLED)){
+                if(s == RUNNING) connection.disconnect();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Cancels the call after the given time, unless it has completed by then
+     * 
+     * @param nanos
+     * @return the scheduled cancellation, to be cancelled itself when the call completes
+     */
+    public ScheduledFuture<?> cancel_after(long nanos){
+        return WATCHDOG.schedule(() -> { cancel(); }, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean is_cancelled(){
+        return state.get() == CANCELLED;
+    }
+}
@@ -2,14 +2,22 @@ package identity.plus.api.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
@@ -19,13 +27,91 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.resilience.Deadline;
+
 public class HTTPS_Utils {
+        /**
+         * How long to wait for a connection to be established, in milliseconds, 0 for no limit. 
+         * A call with a deadline waits at most until the deadline
+         */
+        public static volatile int connect_timeout_millis = 10000;
+        
+        /**
+         * How long to wait for data, including the TLS handshake and the response, in milliseconds, 0 for no limit. 
+         * A call with a deadline waits at most until the deadline
+         */
+        public static volatile int read_timeout_millis = 30000;
+        
+        /**
+         * The protocol of the TLS contexts made by prepare_tls_context. "TLS" negotiates TLS 1.3 when the server
+         * supports it, with its 1-RTT handshake, and falls back to TLS 1.2 otherwise. Set it to "TLSv1.2" to pin TLS 1.2
+         */
+        public static volatile String tls_protocol = "TLS";
+        
+        /**
+         * How many TLS sessions a context remembers for resumption, 0 for no limit
+         */
+        public static volatile int tls_session_cache_size = 256;
+        
+        /**
+         * How long a TLS session can be resumed after it was established, in seconds, 0 for no limit. 
+         * The server may hold its sessions (TLS 1.3 tickets) for less
+         */
+        public static volatile int tls_session_timeout_seconds = 86400;
+        
+        /**
+         * The socket factories of the TLS contexts. HttpsURLConnection only reuses a kept alive connection if it 
+         * is given the very same factory, and SSLContext.getSocketFactory() makes a new one at each call
+         */
+        private static final TTL_Cache<Factory_Key, SSLSocketFactory> SOCKET_FACTORIES = new TTL_Cache<>(3600000, 256);
+        
+        /**
+         * The TLS contexts prepared by the static calls, by the digest of the credentials and trusted authorities they were made from
+         */
+        private static final TTL_Cache<String, SSLContext> TLS_CONTEXTS = new TTL_Cache<>(3600000, 64);
+        
+        /**
+         * A TLS context and the metrics recorder its handshakes are counted with, compared by identity
+         */
+        private static final class Factory_Key{
+                private final SSLContext tls_context;
+                private final Metrics_Recorder metrics;
+                
+                private Factory_Key(SSLContext tls_context, Metrics_Recorder metrics){
+                        this.tls_context = tls_context;
+                        this.metrics = metrics;
+                }
+                
+                @Override
+                public boolean equals(Object o){
+                        return o instanceof Factory_Key && ((Factory_Key)o).tls_context == tls_context && ((Factory_Key)o).metrics == metrics;
+                }
+                
+                @Override
+                public int hashCode(){
+                        return System.identityHashCode(tls_context) * 31 + System.identityHashCode(metrics);
+                }
+        }
+        
+        /**
+         * Includes the hit ratios of the socket factory and TLS context caches in the metrics
+         * 
+         * @param metrics
+         */
+        public static void register_caches(Metrics_Recorder metrics){
+                metrics.register_cache("tls-socket-factories", SOCKET_FACTORIES);
+                metrics.register_cache("tls-contexts", TLS_CONTEXTS);
+        }
     
         /**
          * Generates a KeyStore object to be used with a TLS communication containing a list of trusted authorities. 
@@ -144,12 +230,139 @@ public class HTTPS_Utils {
                 TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
                 if(trust_store != null) tmf.init(trust_store);
                 
-                SSLContext ctx = SSLContext.getInstance("TLSv1.2"); 
+                SSLContext ctx = SSLContext.getInstance(tls_protocol); 
                 ctx.init(credentials == null ? null : kmf.getKeyManagers(), trust_store == null ? null : tmf.getTrustManagers(), null);
+                tune_sessions(ctx);
                                 
                 return ctx;
         }
         
+        /**
+         * Sizes the client session cache of the context, so that new connections resume an earlier session 
+         * (abbreviated handshake, no certificate exchange and no signature with the client key) instead of making a full handshake
+         * 
+         * @param ctx, an initialized TLS context
+         * @return the same context
+         */
+        public static SSLContext tune_sessions(SSLContext ctx){
+                SSLSessionContext sessions = ctx.getClientSessionContext();
+                sessions.setSessionCacheSize(tls_session_cache_size);
+                sessions.setSessionTimeout(tls_session_timeout_seconds);
+                
+                return ctx;
+        }
+        
+        /**
+         * @param tls_context
+         * @param metrics, where to count the handshakes, can be null
+         * @return the socket factory of the context, which counts the handshakes if there is a metrics recorder. 
+         * The same factory is returned for the same context and recorder, so that connections can be kept alive
+         */
+        public static SSLSocketFactory socket_factory(SSLContext tls_context, Metrics_Recorder metrics){
+                Factory_Key key = new Factory_Key(tls_context, metrics);
+                SSLSocketFactory factory = SOCKET_FACTORIES.get(key);
+                
+                if(factory == null){
+                        factory = tls_context.getSocketFactory();
+                        if(metrics != null) factory = new Handshake_Counting_Socket_Factory(factory, metrics);
+                        SOCKET_FACTORIES.put(key, factory);
+                }
+                
+                return factory;
+        }
+        
+        /**
+         * Drops the socket factory of a context which is no longer used, for example after the credentials were rotated
+         * 
+         * @param tls_context
+         * @param metrics, the recorder the factory was asked with
+         */
+        public static void forget_socket_factory(SSLContext tls_context, Metrics_Recorder metrics){
+                SOCKET_FACTORIES.remove(new Factory_Key(tls_context, metrics));
+        }
+        
+        /**
+         * Prepares a TLS context which trusts the given authorities, or gets it from the cache if it was prepared before
+         * 
+         * @param ca_data trusted authorities file as explained in the load_trusted_authorities method. If it is null, the context trusts the generally trusted authorities
+         * @return
+         * @throws GeneralSecurityException
+         * @throws IOException
+         */
+        public static SSLContext cached_tls_context(byte[] ca_data) throws GeneralSecurityException, IOException{
+                String key = digest("ca", ca_data);
+                SSLContext tls_context = TLS_CONTEXTS.get(key);
+                
+                if(tls_context == null){
+                        tls_context = prepare_tls_context(null, null, load_trusted_authorities(ca_data));
+                        TLS_CONTEXTS.put(key, tls_context);
+                }
+                
+                return tls_context;
+        }
+        
+        /**
+         * Prepares a TLS context from a PKCS12 file, or gets it from the cache if it was prepared before from the same bytes and password.
+         * This skips the parsing and decryption of the key store on repeated calls
+         * 
+         * @param p12_data the bytes of a PKCS12 formated file containing the certificate, private key and potentially authority chain
+         * @param p12_password
+         * @param ca_data the bytes of a PEM formated file containing a list of authorities, can be null
+         * @return
+         * @throws GeneralSecurityException
+         * @throws IOException
+         */
+        public static SSLContext cached_tls_context(byte[] p12_data, String p12_password, byte[] ca_data) throws GeneralSecurityException, IOException{
+                String key = digest("p12", p12_data, p12_password == null ? null : p12_password.getBytes(StandardCharsets.UTF_8), ca_data);
+                SSLContext tls_context = TLS_CONTEXTS.get(key);
+                
+                if(tls_context == null){
+                        tls_context = prepare_tls_context(load_credentials(p12_data, p12_password), (p12_password == null ? "" : p12_password).toCharArray(), load_trusted_authorities(ca_data));
+                        TLS_CONTEXTS.put(key, tls_context);
+                }
+                
+                return tls_context;
+        }
+        
+        /**
+         * Prepares a TLS context from a PEM encoded certificate / key pair, or gets it from the cache if it was prepared before from the same bytes
+         * 
+         * @param cert_data the bytes of a PEM formated file containing the client certificate and potentially authority chain
+         * @param key_data the bytes of the PEM formatted private key
+         * @param ca_data the bytes of a PEM formated file containing a list of authorities, can be null
+         * @return
+         * @throws GeneralSecurityException
+         * @throws IOException
+         */
+        public static SSLContext cached_tls_context(byte[] cert_data, byte[] key_data, byte[] ca_data) throws GeneralSecurityException, IOException{
+                String key = digest("pem", cert_data, key_data, ca_data);
+                SSLContext tls_context = TLS_CONTEXTS.get(key);
+                
+                if(tls_context == null){
+                        tls_context = prepare_tls_context(load_credentials(cert_data, key_data), new char[]{}, load_trusted_authorities(ca_data));
+                        TLS_CONTEXTS.put(key, tls_context);
+                }
+                
+                return tls_context;
+        }
+        
+        /**
+         * Digests the kind of material, the protocol and every part, each part prefixed by its length so that different splits 
+         * of the same bytes can't collide. The digest is the cache key, so the private key material is not kept in the key
+         */
+        private static String digest(String kind, byte[] ... parts) throws NoSuchAlgorithmException{
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update((kind + " " + tls_protocol).getBytes(StandardCharsets.UTF_8));
+                
+                for(byte[] part : parts){
+                        int length = part == null ? -1 : part.length;
+                        digest.update(new byte[]{(byte)(length >>> 24), (byte)(length >>> 16), (byte)(length >>> 8), (byte)length});
+                        if(part != null) digest.update(part);
+                }
+                
+                return Base64.getEncoder().encodeToString(digest.digest());
+        }
+        
         
         /**
          * Makes an HTTP Call using no credentials
@@ -164,10 +377,7 @@ public class HTTPS_Utils {
          */
         public static final byte[] call(String url, String method, String[] headers, String body, byte[] ca_data){
             try{
-                    KeyStore trusted_authorities = load_trusted_authorities(ca_data);
-                    SSLContext tls_context = prepare_tls_context(null, null, trusted_authorities);
-                    
-                    return call(url, method, headers, body, tls_context);
+                    return call(url, method, headers, body, cached_tls_context(ca_data));
             }
             catch(Exception e) {
                     return ("FAIL L4:" + e.getMessage()).getBytes();
@@ -190,11 +400,7 @@ public class HTTPS_Utils {
          */
         public static final byte[] call(String url, String method, String[] headers, String body, byte[] p12_data, String p12_password, byte[] ca_data){
                 try{
-                        KeyStore credentials = load_credentials(p12_data, p12_password);
-                        KeyStore trusted_authorities = load_trusted_authorities(ca_data);
-                        SSLContext tls_context = prepare_tls_context(credentials, p12_password.toCharArray(), trusted_authorities);
-                        
-                        return call(url, method, headers, body, tls_context);
+                        return call(url, method, headers, body, cached_tls_context(p12_data, p12_password, ca_data));
                 }
                 catch(Exception e) {
                     return ("FAIL L4:" + e.getMessage()).getBytes();
@@ -217,11 +423,7 @@ public class HTTPS_Utils {
          */
         public static final byte[] call(String url, String method, String[] headers, String body, byte[] cert_data, byte[] key_data, byte[] ca_data){
                 try{
-                        KeyStore credentials = load_credentials(cert_data, key_data);
-                        KeyStore trusted_authorities = load_trusted_authorities(ca_data);
-                        SSLContext tls_context = prepare_tls_context(credentials, new char[]{}, trusted_authorities);
-                        
-                        return call(url, method, headers, body, tls_context);
+                        return call(url, method, headers, body, cached_tls_context(cert_data, key_data, ca_data));
                 }
                 catch(Exception e) {
                         return ("FAIL L4:" + e.getMessage()).getBytes();
@@ -243,7 +445,8 @@ public class HTTPS_Utils {
                 try {
                         URL endpoint = new URL(url);
                         HttpsURLConnection connection = (HttpsURLConnection)endpoint.openConnection();
-                        connection.setSSLSocketFactory(tls_context.getSocketFactory());
+                        connection.setSSLSocketFactory(socket_factory(tls_context, null));
+                        apply_timeouts(connection, Deadline.NONE);
                         
                         // set the method
                         connection.setRequestMethod(method.toUpperCase());
@@ -266,13 +469,20 @@ public class HTTPS_Utils {
                         
                         int response_code = connection.getResponseCode();
         
-                        byte[] data = drain(connection.getInputStream());
+                        byte[] data;
+                        try(InputStream is = connection.getInputStream()){
+                                data = drain(is);
+                        }
+                        catch(IOException e){
+                                release(connection);
+                                throw e;
+                        }
         
                         if(response_code != 200) return ("FAIL L7 " + response_code + ": " + new String(data, "UTF-8")).getBytes();
                         else return data;
                 }
                 catch(Exception e) {
-                        e.printStackTrace();
+                        Log.log(1, "HTTPS call to " + url + " failed", e);
                         return ("FAIL L5: " + e.getMessage()).getBytes();
                 }
         }
@@ -289,9 +499,135 @@ public class HTTPS_Utils {
          * @return byte[] array containing the response body. If the response is anything but 200 OK, the code is affixed to the beginning of the response
          */
         public static final void call(String url, String method, String[] headers, String body, SSLContext tls_context, HTTP_Response_Handler handler) throws IOException{
+                call(url, method, headers, body, tls_context, null, handler);
+        }
+
+        /**
+         * Performs an https call using a predefined TLS context and records the connection time, request time and 
+         * the transferred bytes with the given metrics recorder
+         * 
+         * @param url the URL in the format https://domain/etc/etc
+         * @param method the HTTP method (GET, POST, etc)
+         * @param headers a list of headers formatted: {"Header-1-Name: value", ... , "Header-n-Name: value"}. Important, by default, no headers are passed, not even content type so it must be done by the caller
+         * @param body the body of the HTTP call formatted according to the content type, it is sent UTF-8 encoded
+         * @param tls_context perfoms the call using a predefined TLS Context (credentials and trust is in the context)
+         * @param metrics where to record the measurements, can be null
+         * @param handler receives the response code and body
+         * @throws IOException
+         */
+        public static final void call(String url, String method, String[] headers, String body, SSLContext tls_context, Metrics_Recorder metrics, HTTP_Response_Handler handler) throws IOException{
+                call(url, method, headers, body, tls_context, metrics, null, handler);
+        }
+
+        /**
+         * Performs an https call which can be cancelled from another thread through the given handle
+         * 
+         * @param url the URL in the format https://domain/etc/etc
+         * @param method the HTTP method (GET, POST, etc)
+         * @param headers a list of headers formatted: {"Header-1-Name: value", ... , "Header-n-Name: value"}
+         * @param body the body of the HTTP call formatted according to the content type, it is sent UTF-8 encoded
+         * @param tls_context perfoms the call using a predefined TLS Context (credentials and trust is in the context)
+         * @param metrics where to record the measurements, can be null
+         * @param handle allows the call to be cancelled, can be null
+         * @param handler receives the response code and body
+         * @throws IOException, also if the call is cancelled
+         */
+        public static final void call(String url, String method, String[] headers, String body, SSLContext tls_context, Metrics_Recorder metrics, Call_Handle handle, HTTP_Response_Handler handler) throws IOException{
+                call(url, method, headers, body, tls_context, metrics, handle, Deadline.NONE, handler);
+        }
+
+        /**
+         * Performs an https call which must complete before the deadline. 
+         * 
+         * The connect timeout is bounded by the time left and the read timeout, which also covers the TLS handshake,
+         * by the time left once connected. As the read timeout applies to each read, not to the whole response, the 
+         * connection is also cancelled when the deadline passes. Running out of time fails with a SocketTimeoutException.
+         * 
+         * @param url the URL in the format https://domain/etc/etc
+         * @param method the HTTP method (GET, POST, etc)
+         * @param headers a list of headers formatted: {"Header-1-Name: value", ... , "Header-n-Name: value"}
+         * @param body the body of the HTTP call formatted according to the content type, it is sent UTF-8 encoded
+         * @param tls_context perfoms the call using a predefined TLS Context (credentials and trust is in the context)
+         * @param metrics where to record the measurements, can be null
+         * @param handle allows the call to be cancelled, can be null
+         * @param deadline when the call must complete by, Deadline.NONE for the default timeouts only
+         * @param handler receives the response code and body
+         * @throws IOException, also if the call is cancelled
+         */
+        public static final void call(String url, String method, String[] headers, String body, SSLContext tls_context, Metrics_Recorder metrics, Call_Handle handle, Deadline deadline, HTTP_Response_Handler handler) throws IOException{
                 URL endpoint = new URL(url);
                 HttpsURLConnection connection = (HttpsURLConnection)endpoint.openConnection();
-                connection.setSSLSocketFactory(tls_context.getSocketFactory());
+                connection.setSSLSocketFactory(socket_factory(tls_context, metrics));
+                apply_timeouts(connection, deadline);
+                
+                if(deadline.is_bounded() && handle == null) handle = new Call_Handle();
+                if(handle != null && !handle.started(connection)) throw new InterruptedIOException("The call was cancelled");
+                
+                ScheduledFuture<?> watchdog = deadline.is_bounded() ? handle.cancel_after(deadline.remaining_nanos()) : null;
+                try{
+                        call(connection, method, headers, body, metrics, handle, deadline, handler);
+                }
+                catch(IOException e){
+                        throw timed_out(e, deadline, url);
+                }
+                finally{
+                        if(watchdog != null) watchdog.cancel(false);
+                }
+        }
+
+        /**
+         * Disconnects the connection when the deadline passes, for callers managing their own connections
+         * 
+         * @param connection
+         * @param deadline
+         * @return the scheduled disconnection, to be cancelled when the call completes, null if the deadline is not bounded
+         */
+        public static ScheduledFuture<?> watch(HttpURLConnection connection, Deadline deadline){
+                if(!deadline.is_bounded()) return null;
+                
+                Call_Handle handle = new Call_Handle();
+                handle.started(connection);
+                
+                return handle.cancel_after(deadline.remaining_nanos());
+        }
+
+        /**
+         * @param e, the error a call failed with
+         * @param deadline
+         * @param url
+         * @return a SocketTimeoutException if the call failed because its deadline passed (the connection was cancelled), e otherwise
+         */
+        public static IOException timed_out(IOException e, Deadline deadline, Object url){
+                if(!deadline.expired() || e instanceof SocketTimeoutException) return e;
+                
+                SocketTimeoutException timeout = new SocketTimeoutException("The deadline of the call to " + url + " passed");
+                timeout.initCause(e);
+                return timeout;
+        }
+
+        /**
+         * Sets the connect and read timeouts of a connection, the defaults bounded by the time left until the deadline
+         * 
+         * @param connection
+         * @param deadline
+         * @throws SocketTimeoutException if the deadline has already passed
+         */
+        public static void apply_timeouts(HttpURLConnection connection, Deadline deadline) throws SocketTimeoutException{
+                connection.setConnectTimeout(bounded_timeout(connect_timeout_millis, deadline));
+                connection.setReadTimeout(bounded_timeout(read_timeout_millis, deadline));
+        }
+
+        private static int bounded_timeout(int timeout, Deadline deadline) throws SocketTimeoutException{
+                if(!deadline.is_bounded()) return timeout;
+
+                long remaining = deadline.remaining_millis();
+                if(remaining <= 0) throw new SocketTimeoutException("The deadline passed before the call was made");
+
+                // 0 is no timeout
+                return (int)(timeout == 0 ? Math.min(remaining, Integer.MAX_VALUE) : Math.min(remaining, timeout));
+        }
+
+        private static void call(HttpsURLConnection connection, String method, String[] headers, String body, Metrics_Recorder metrics, Call_Handle handle, Deadline deadline, HTTP_Response_Handler handler) throws IOException{
                 
                 // set the method
                 connection.setRequestMethod(method.toUpperCase());
@@ -306,13 +642,111 @@ public class HTTPS_Utils {
                 
                 connection.setDoOutput(true);
                 
-                if(body != null) {
-                        OutputStreamWriter wr = new OutputStreamWriter(connection.getOutputStream());
-                        wr.write(body);
-                        wr.flush();
+                // connecting explicitly separates the connection (TCP + TLS handshake) time from the request time
+                long start = System.nanoTime();
+                connection.connect();
+                long connected = System.nanoTime();
+                
+                // what is left of the budget is for writing the request and reading the response
+                if(deadline.is_bounded()) connection.setReadTimeout(bounded_timeout(read_timeout_millis, deadline));
+                
+                byte[] payload = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+                if(payload != null) {
+                        OutputStream os = connection.getOutputStream();
+                        os.write(payload);
+                        os.flush();
+                }
+                
+                int response_code = connection.getResponseCode();
+                
+                InputStream is;
+                try{
+                        is = connection.getInputStream();
+                }
+                catch(IOException e){
+                        // 4xx and 5xx, the error body must be consumed too or the connection can't be reused
+                        release(connection);
+                        if(response_code >= 400) throw new HTTP_Status_Exception(response_code, connection.getURL().toString(), e);
+                        throw e;
+                }
+                
+                Counting_Input_Stream response_body = new Counting_Input_Stream(is);
+                try{
+                        handler.handle(response_code, response_body);
+                }
+                finally{
+                        close(response_body, connection);
                 }
+                if(handle != null) handle.finished();
                 
-                handler.handle(connection.getResponseCode(), connection.getInputStream());
+                if(metrics != null){
+                        metrics.connect_time.record_nanos(connected - start);
+                        metrics.request_time.record_nanos(System.nanoTime() - connected);
+                        metrics.record_transfer(payload == null ? 0 : payload.length, response_body.count);
+                }
+        }
+        
+        /**
+         * Consumes and closes whichever of the response streams carries the body, so that the connection 
+         * goes back to the keep-alive cache instead of being dropped (and the next call paying for a new TCP connection and TLS handshake)
+         * 
+         * @param connection, a connection whose response was received
+         */
+        public static void release(HttpURLConnection connection){
+                InputStream is = connection.getErrorStream();
+                try{
+                        if(is == null) is = connection.getInputStream();
+                }
+                catch(IOException e){
+                        return;
+                }
+                
+                close(is, connection);
+        }
+        
+        /**
+         * Closing the body of a response drains what is left of it, if that is only a little, and hands the connection back 
+         * to the keep-alive cache. If the stream is unusable (cancelled calls) the connection is discarded.
+         */
+        private static void close(InputStream is, HttpURLConnection connection){
+                try{
+                        is.close();
+                }
+                catch(IOException e){
+                        connection.disconnect();
+                }
+        }
+        
+        /**
+         * Counts the bytes read through it
+         */
+        private static final class Counting_Input_Stream extends FilterInputStream{
+                private long count = 0;
+                
+                private Counting_Input_Stream(InputStream in){
+                        super(in);
+                }
+                
+                @Override
+                public int read() throws IOException {
+                        int b = super.read();
+                        if(b >= 0) count++;
+                        return b;
+                }
+                
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if(n > 0) count += n;
+                        return n;
+                }
+                
+                @Override
+                public long skip(long n) throws IOException {
+                        long skipped = super.skip(n);
+                        count += skipped;
+                        return skipped;
+                }
         }
         
         /**
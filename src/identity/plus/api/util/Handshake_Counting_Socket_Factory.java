@@ -0,0 +1,477 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import identity.plus.api.metrics.Metrics_Recorder;
+
+/**
+ * Wraps the socket factory of a TLS context and records every handshake made on the sockets it creates.
+ *
+ * A handshake is full if it created a new session, and resumed if it picked up a session from the cache
+ * of the context (TLS 1.2 session ids or tickets, TLS 1.3 pre-shared keys). A resumed session was created
+ * before the socket, so the two are told apart by the creation time of the session. The counters are:
+ *     tls.handshake.full
+ *     tls.handshake.resumed
+ *     tls.handshake.<protocol>, for example tls.handshake.TLSv1.3
+ *
+ * The handshake is timed around startHandshake(), which HttpsURLConnection calls explicitly, on the calling thread. 
+ * A HandshakeCompletedListener is not used, the JDK starts a new thread for every notification. Handshakes started 
+ * implicitly, by the first read or write, are not counted.
+ *
+ * Connections reused from the keep-alive cache make no handshake at all, so they are not counted.
+ */
+public class Handshake_Counting_Socket_Factory extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+    private final Metrics_Recorder metrics;
+
+    /**
+     * Constructor
+     *
+     * @param delegate, the factory of the TLS context, tls_context.getSocketFactory()
+     * @param metrics, where the handshakes are counted
+     */
+    public Handshake_Counting_Socket_Factory(SSLSocketFactory delegate, Metrics_Recorder metrics){
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return watch(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean auto_close) throws IOException {
+        // this is the one HttpsURLConnection uses, the TCP connection is established, the handshake is next
+        return watch(delegate.createSocket(s, host, port, auto_close));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return watch(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress local_host, int local_port) throws IOException {
+        return watch(delegate.createSocket(host, port, local_host, local_port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return watch(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress local_address, int local_port) throws IOException {
+        return watch(delegate.createSocket(address, port, local_address, local_port));
+    }
+
+    private Socket watch(Socket socket){
+        if(!(socket instanceof SSLSocket)) return socket;
+        return new Watched_Socket((SSLSocket)socket, metrics);
+    }
+
+    /**
+     * Delegates everything to the socket of the TLS context, and records the first handshake when startHandshake returns
+     */
+    private static final class Watched_Socket extends SSLSocket {
+        private final SSLSocket socket;
+        private final Metrics_Recorder metrics;
+        private final long created = System.currentTimeMillis();
+        private boolean recorded = false;
+
+        private Watched_Socket(SSLSocket socket, Metrics_Recorder metrics){
+            this.socket = socket;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void startHandshake() throws IOException {
+            if(recorded){
+                socket.startHandshake();
+                return;
+            }
+
+            long started = System.nanoTime();
+            socket.startHandshake();
+            long elapsed = System.nanoTime() - started;
+
+            recorded = true;
+            SSLSession session = socket.getSession();
+
+            metrics.count(session.getCreationTime() < created ? "tls.handshake.resumed" : "tls.handshake.full");
+            metrics.count("tls.handshake." + session.getProtocol());
+            metrics.handshake_time.record_nanos(elapsed);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return socket.getSession();
+        }
+
+        @Override
+        public SSLSession getHandshakeSession() {
+            return socket.getHandshakeSession();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return socket.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return socket.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            socket.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return socket.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return socket.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            socket.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return socket.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            socket.setSSLParameters(params);
+        }
+
+        @Override
+        public String getApplicationProtocol() {
+            return socket.getApplicationProtocol();
+        }
+
+        @Override
+        public String getHandshakeApplicationProtocol() {
+            return socket.getHandshakeApplicationProtocol();
+        }
+
+        @Override
+        public void addHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            socket.addHandshakeCompletedListener(listener);
+        }
+
+        @Override
+        public void removeHandshakeCompletedListener(HandshakeCompletedListener listener) {
+            socket.removeHandshakeCompletedListener(listener);
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            socket.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return socket.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            socket.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return socket.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            socket.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return socket.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            socket.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return socket.getEnableSessionCreation();
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            socket.connect(endpoint);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            socket.connect(endpoint, timeout);
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException {
+            socket.bind(bindpoint);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return socket.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return socket.getPort();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return socket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return socket.getChannel();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            socket.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return socket.getTcpNoDelay();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            socket.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return socket.getSoLinger();
+        }
+
+        @Override
+        public void sendUrgentData(int data) throws IOException {
+            socket.sendUrgentData(data);
+        }
+
+        @Override
+        public void setOOBInline(boolean on) throws SocketException {
+            socket.setOOBInline(on);
+        }
+
+        @Override
+        public boolean getOOBInline() throws SocketException {
+            return socket.getOOBInline();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            socket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return socket.getSoTimeout();
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException {
+            socket.setSendBufferSize(size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException {
+            return socket.getSendBufferSize();
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException {
+            socket.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException {
+            return socket.getReceiveBufferSize();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            socket.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return socket.getKeepAlive();
+        }
+
+        @Override
+        public void setTrafficClass(int tc) throws SocketException {
+            socket.setTrafficClass(tc);
+        }
+
+        @Override
+        public int getTrafficClass() throws SocketException {
+            return socket.getTrafficClass();
+        }
+
+        @Override
+        public void setReuseAddress(boolean on) throws SocketException {
+            socket.setReuseAddress(on);
+        }
+
+        @Override
+        public boolean getReuseAddress() throws SocketException {
+            return socket.getReuseAddress();
+        }
+
+        @Override
+        public void setPerformancePreferences(int connection_time, int latency, int bandwidth) {
+            socket.setPerformancePreferences(connection_time, latency, bandwidth);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            socket.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            socket.shutdownOutput();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return socket.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return socket.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return socket.isOutputShutdown();
+        }
+
+        @Override
+        public String toString() {
+            return socket.toString();
+        }
+    }
+}
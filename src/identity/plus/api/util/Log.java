@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * Holds the Logger used across the identity+ API.
+ * 
+ * Unless an implementation is registered via META-INF/services/identity.plus.api.util.Logger or set explicitly,
+ * the API logs to the standard output, asynchronously and rate limited to 10 identical messages per minute.
+ * The verbosity of the default logger is taken from the identity.plus.log.verbosity system property, 2 by default.
+ */
+public class Log {
+    private static volatile Logger logger = default_logger();
+
+    private static Logger default_logger(){
+        Iterator<Logger> provided = ServiceLoader.load(Logger.class).iterator();
+        if(provided.hasNext()) return provided.next();
+
+        int verbosity = Integer.getInteger("identity.plus.log.verbosity", 2);
+        return new Rate_Limited_Logger(new Async_Logger(new Console_Logger(verbosity), 4096), 10, 60000);
+    }
+
+    public static Logger get_logger(){
+        return logger;
+    }
+
+    public static void set_logger(Logger logger){
+        if(logger == null) throw new NullPointerException("Logger cannot be null");
+        Log.logger = logger;
+    }
+
+    /**
+     * @param verbosity_level
+     * @return true if the messages at the given level are logged. Check this before building expensive messages
+     */
+    public static boolean is_enabled(int verbosity_level){
+        return logger.is_enabled(verbosity_level);
+    }
+
+    public static void log(int verbosity_level, String message, Throwable exception){
+        Logger l = logger;
+        if(l.is_enabled(verbosity_level)) l.log(verbosity_level, message, exception);
+    }
+}
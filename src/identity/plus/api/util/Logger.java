@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+/**
+ * The logging SPI of the identity+ API.
+ * 
+ * The verbosity level goes from 0 (critical, always worth logging) upwards to increasingly detailed 
+ * information. Callers check is_enabled before building the message, so a disabled level costs
+ * nothing on the hot path.
+ * 
+ * Implementations can be plugged in via Log.set_logger or, without touching the code, by listing them in
+ * META-INF/services/identity.plus.api.util.Logger. Implementations must be thread safe.
+ */
+public interface Logger {
+        /**
+         * @param verbosity_level
+         * @return true if messages at the given verbosity level will be logged
+         */
+        public boolean is_enabled(int verbosity_level);
+        
+        /**
+         * Logs the message. It should not block the calling thread for longer than necessary
+         * 
+         * @param verbosity_level
+         * @param message
+         * @param exception, can be null
+         */
+        public void log(int verbosity_level, String message, Throwable exception);
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps servlet style path patterns to values. The patterns are compiled into a character trie
+ * once, when they are added, and matching a path is a single walk over its characters with no allocation.
+ *
+ * Supported patterns:
+ *     /exact/path     matches only the given path
+ *     /prefix/*       matches /prefix and everything underneath it
+ *     /*              matches everything, it is the default
+ *
+ * As in the servlet specification, an exact match wins over a prefix match and the longest prefix wins
+ * over the shorter ones.
+ *
+ * @param <V> the type of value associated with the patterns
+ */
+public class Path_Trie<V> {
+    private static final class Node<V>{
+        private char[] keys = new char[0];
+        private Node<V>[] children = new_array(0);
+        private V exact;
+        private V prefix;
+
+        private Node<V> child(char c){
+            for(int i = 0; i < keys.length; i++) if(keys[i] == c) return children[i];
+            return null;
+        }
+
+        private Node<V> add_child(char c){
+            Node<V> n = child(c);
+            if(n != null) return n;
+
+            n = new Node<V>();
+            keys = Arrays.copyOf(keys, keys.length +1);
+            children = Arrays.copyOf(children, children.length +1);
+            keys[keys.length -1] = c;
+            children[children.length -1] = n;
+
+            return n;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] new_array(int size){
+            return (Node<V>[])new Node<?>[size];
+        }
+    }
+
+    private final Node<V> root = new Node<V>();
+
+    /**
+     * Adds a pattern to the trie. Adding the same pattern twice replaces the value
+     *
+     * @param pattern, one of the supported patterns (see class description)
+     * @param value
+     * @return this trie, so that calls can be chained
+     */
+    public Path_Trie<V> add(String pattern, V value){
+        if(pattern == null || value == null) throw new NullPointerException("Pattern and value must be specified");
+
+        pattern = pattern.trim();
+        boolean prefix = pattern.equals("*") || pattern.endsWith("/*");
+        if(prefix) pattern = pattern.substring(0, Math.max(0, pattern.length() -2));
+        if(!prefix && !pattern.startsWith("/")) throw new IllegalArgumentException("Unsupported path pattern: " + pattern);
+
+        Node<V> n = root;
+        for(int i = 0; i < pattern.length(); i++) n = n.add_child(pattern.charAt(i));
+
+        if(prefix) n.prefix = value;
+        else n.exact = value;
+
+        return this;
+    }
+
+    /**
+     * @param path
+     * @return the value of the best matching pattern, or null if nothing matches
+     */
+    public V match(CharSequence path){
+        return match(path, 0);
+    }
+
+    /**
+     * Matches only the part of the path starting from a given offset, this is useful to ignore the context path
+     * without creating a sub string
+     *
+     * @param path
+     * @param from, where the relevant part of the path starts
+     * @return the value of the best matching pattern, or null if nothing matches
+     */
+    public V match(CharSequence path, int from){
+        int end = path.length();
+        V best = null;
+
+        Node<V> n = root;
+        for(int i = from; n != null; i++){
+            if(n.prefix != null && (i == end || path.charAt(i) == '/')) best = n.prefix;
+            if(i == end) return n.exact != null ? n.exact : best;
+
+            n = n.child(path.charAt(i));
+        }
+
+        return best;
+    }
+}
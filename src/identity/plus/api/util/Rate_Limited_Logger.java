@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many times the same message is logged within a time window. Messages over the limit are
+ * counted and the count is reported along with the first occurrence in the next window.
+ * 
+ * Messages are considered the same if their text is identical, the bookkeeping is bounded, so a flood of 
+ * distinct messages cannot exhaust memory.
+ */
+public class Rate_Limited_Logger implements Logger {
+    /**
+     * Occurrences of a message in the current window
+     */
+    private static final class Window{
+        private final AtomicInteger count = new AtomicInteger();
+        private final int suppressed_before;
+
+        private Window(int suppressed_before){
+            this.suppressed_before = suppressed_before;
+        }
+    }
+
+    private final Logger delegate;
+    private final int max_per_window;
+    private final TTL_Cache<String, Window> windows;
+    private final TTL_Cache<String, Integer> suppressed;
+
+    /**
+     * Constructor
+     * 
+     * @param delegate, the logger to forward the messages that are within the limit to
+     * @param max_per_window, how many times the same message is logged per window
+     * @param window_millis, the length of the window in milliseconds
+     */
+    public Rate_Limited_Logger(Logger delegate, int max_per_window, long window_millis){
+        this.delegate = delegate;
+        this.max_per_window = max_per_window;
+        this.windows = new TTL_Cache<>(window_millis, 4096);
+        this.suppressed = new TTL_Cache<>(window_millis * 10, 4096);
+    }
+
+    @Override
+    public boolean is_enabled(int verbosity_level) {
+        return delegate.is_enabled(verbosity_level);
+    }
+
+    @Override
+    public void log(int verbosity_level, String message, Throwable exception) {
+        String key = message == null ? "" : message;
+
+        Window w = windows.get(key);
+        if(w == null){
+            Integer previously_suppressed = suppressed.remove(key);
+            w = new Window(previously_suppressed == null ? 0 : previously_suppressed);
+            windows.put(key, w);
+        }
+
+        int n = w.count.incrementAndGet();
+
+        if(n <= max_per_window) {
+            if(n == 1 && w.suppressed_before > 0) message = message + " (" + w.suppressed_before + " similar messages suppressed)";
+            delegate.log(verbosity_level, message, exception);
+        }
+        else suppressed.put(key, n - max_per_window);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright 2016 Identity+ (https://identity.plus) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * This code is part of the identity+ API Wrapper suite and it is meant to facilitate
+ * access to the identity + ReST Service. While the ReST service is not dependent 
+ * upon this code, this code shortens implementation time because it wraps regular
+ * ReST calls into a more developer friendly package.
+ * 
+ * You are free to make changes to this code to better suite your particular
+ * implementation and keep it closed source, however, if you consider the changes are relevant to the
+ * the identity + community, please consider donating your changes back to the community.
+ * 
+ * You are permitted to use the identity.plus package names in your fork as long as the 
+ * code can be used exclusively to connect to the Identity + ReST API services.
+ * 
+ * Please submit bugs or improvement requests at https://identity.plus/
+ *
+ * Contributors:
+ *     Stefan Harsan Farr
+ */
+package identity.plus.api.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small concurrent cache where every entry expires a fixed amount of time after it was stored.
+ *
+ * Reads are lock free, they only go through the underlying ConcurrentHashMap. The size of the cache
+ * is bounded, when the bound is reached, expired entries are swept first and if that is not enough
+ * arbitrary entries are dropped until the cache is back to 3/4 of its capacity. Only one thread sweeps
+ * at a time, the others carry on.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class TTL_Cache<K, V> {
+    /**
+     * Value holder, remembers when the value goes stale
+     */
+    private static final class Entry<V>{
+        private final V value;
+        private final long expires;
+
+        private Entry(V value, long expires){
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> entries;
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * How long an entry lives, in nano seconds
+     */
+    public final long ttl_nanos;
+
+    /**
+     * The maximum number of entries the cache will hold
+     */
+    public final int max_entries;
+
+    /**
+     * Constructor
+     *
+     * @param ttl_millis, how long an entry is valid after it was stored, in milliseconds
+     * @param max_entries, the maximum number of entries to keep
+     */
+    public TTL_Cache(long ttl_millis, int max_entries){
+        if(ttl_millis <= 0 || max_entries <= 0) throw new IllegalArgumentException("Time to live and the number of entries must be positive");
+
+        this.ttl_nanos = ttl_millis * 1000000L;
+        this.max_entries = max_entries;
+        this.entries = new ConcurrentHashMap<>(Math.min(max_entries, 1024));
+    }
+
+    /**
+     * @param key
+     * @return the value stored under the key or null if there is none or it has expired
+     */
+    public V get(K key){
+        Entry<V> e = entries.get(key);
+        if(e == null){
+            misses.increment();
+            return null;
+        }
+
+        if(e.expires - System.nanoTime() < 0){
+            entries.remove(key, e);
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return e.value;
+    }
+
+    /**
+     * Stores the value under the given key, replacing whatever was there and restarting the time to live
+     *
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value){
+        if(entries.size() >= max_entries) sweep();
+        entries.put(key, new Entry<V>(value, System.nanoTime() + ttl_nanos));
+    }
+
+    /**
+     * @param key
+     * @return the removed value, if any
+     */
+    public V remove(K key){
+        Entry<V> e = entries.remove(key);
+        return e == null ? null : e.value;
+    }
+
+    public void clear(){
+        entries.clear();
+    }
+
+    public int size(){
+        return entries.size();
+    }
+
+    /**
+     * @return how many times get found a valid entry
+     */
+    public long hits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return how many times get found nothing, or an expired entry
+     */
+    public long misses(){
+        return misses.sum();
+    }
+
+    private void sweep(){
+        if(!sweeping.compareAndSet(false, true)) return;
+
+        try{
+            long now = System.nanoTime();
+            for(Iterator<Map.Entry<K, Entry<V>>> i = entries.entrySet().iterator(); i.hasNext(); ) if(i.next().getValue().expires - now < 0) i.remove();
+
+            int target = max_entries - max_entries / 4;
+            for(Iterator<K> i = entries.keySet().iterator(); i.hasNext() && entries.size() > target; ){
+                i.next();
+                i.remove();
+            }
+        }
+        finally{
+            sweeping.set(false);
+        }
+    }
+}
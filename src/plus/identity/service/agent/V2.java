@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -18,6 +19,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.concurrent.ScheduledFuture;
 
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -28,6 +30,10 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import identity.plus.api.metrics.Metrics_Recorder;
+import identity.plus.api.resilience.Deadline;
+import identity.plus.api.util.HTTPS_Utils;
+import identity.plus.api.util.Log;
 import plus.identity.service.agent.responses.IDP_Block;
 import plus.identity.service.agent.responses.IDP_Error;
 import plus.identity.service.agent.responses.IDP_Impossible;
@@ -42,6 +48,13 @@ public class V2 {
     private final SSLSocketFactory socket_factory;
     
     public V2(String end_point, InputStream p_12_stream, String password, InputStream trusted_ca_stream) throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, CertificateException, IOException, UnrecoverableKeyException, KeyManagementException {
+            this(end_point, p_12_stream, password, trusted_ca_stream, null);
+    }
+    
+    /**
+     * @param metrics, where to count the TLS handshakes (full and resumed), can be null
+     */
+    public V2(String end_point, InputStream p_12_stream, String password, InputStream trusted_ca_stream, Metrics_Recorder metrics) throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, CertificateException, IOException, UnrecoverableKeyException, KeyManagementException {
             this.end_point = end_point;
     
             TrustManagerFactory tmf = null;
@@ -53,14 +66,14 @@ public class V2 {
                     KeyStore trust_store = KeyStore.getInstance("JKS");
                     trust_store.load(null, null);
                     for(Certificate ca : ca_list) {
-                            System.out.println("trusting authority: " + ((X509Certificate)ca).getSubjectX500Principal().getName());
+                            if(Log.is_enabled(4)) Log.log(4, "trusting authority: " + ((X509Certificate)ca).getSubjectX500Principal().getName(), null);
                             trust_store.setCertificateEntry(((X509Certificate)ca).getSubjectX500Principal().getName(), ca);
                     }
                     
                     tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
                     tmf.init(trust_store);
             }
-            else System.out.println("trusting authority: all system default");
+            else Log.log(4, "trusting authority: all system default", null);
             
             if (p_12_stream != null){
                     KeyStore ks = KeyStore.getInstance("PKCS12");
@@ -75,11 +88,22 @@ public class V2 {
     
             SSLContext ssl_ctx = SSLContext.getInstance("TLS");
             ssl_ctx.init(kmf != null ? kmf.getKeyManagers() : null, tmf != null ? tmf.getTrustManagers() : null , null);
+            HTTPS_Utils.tune_sessions(ssl_ctx);
             
-            socket_factory = ssl_ctx.getSocketFactory();
+            socket_factory = HTTPS_Utils.socket_factory(ssl_ctx, metrics);
     }
     
+    /**
+     * Calls a V2 operation with GET, within the current deadline of the thread (see Deadline.enter)
+     */
     public IDP_Response get(String operation, String ... parameters) throws IOException{
+            return get(Deadline.current(), operation, parameters);
+    }
+
+    /**
+     * Calls a V2 operation with GET, the call fails with a SocketTimeoutException if it does not complete before the deadline
+     */
+    public IDP_Response get(Deadline deadline, String operation, String ... parameters) throws IOException{
             StringBuilder query_string = new StringBuilder();
             for(int i = 0; i < parameters.length; i++) {
                     query_string.append(query_string.length() == 0 ? "?" : "&");
@@ -91,23 +115,51 @@ public class V2 {
             
             URL endpoint = new URL(end_point + "/v2/" + operation + query_string);
 
-            return call(endpoint, "GET", null);
+            return call(endpoint, "GET", null, deadline);
     }
 
+    /**
+     * Calls a V2 operation with POST, within the current deadline of the thread (see Deadline.enter)
+     */
     public IDP_Response post(String operation, JsonObject arguments) throws IOException{
+            return post(Deadline.current(), operation, arguments);
+    }
+
+    /**
+     * Calls a V2 operation with POST, the call fails with a SocketTimeoutException if it does not complete before the deadline
+     */
+    public IDP_Response post(Deadline deadline, String operation, JsonObject arguments) throws IOException{
             URL endpoint = new URL(end_point + "/v2/" + operation);
-            return call(endpoint, "POST", arguments.toString());
+            return call(endpoint, "POST", arguments.toString(), deadline);
     }
 
-    private IDP_Response call(URL url, String method, String body) throws IOException{
+    private IDP_Response call(URL url, String method, String body, Deadline deadline) throws IOException{
             HttpsURLConnection connection = (HttpsURLConnection)url.openConnection();
             connection.setSSLSocketFactory(socket_factory);
+            HTTPS_Utils.apply_timeouts(connection, deadline);
+
+            ScheduledFuture<?> watchdog = HTTPS_Utils.watch(connection, deadline);
+            try{
+                    return call(connection, method, body);
+            }
+            catch(IOException e){
+                    throw HTTPS_Utils.timed_out(e, deadline, url);
+            }
+            finally{
+                    if(watchdog != null) watchdog.cancel(false);
+            }
+    }
+
+    private IDP_Response call(HttpsURLConnection connection, String method, String body) throws IOException{
 
             connection.setRequestMethod(method);
             
+            // redirects are answers in their own right, they are handed to the caller
+            connection.setInstanceFollowRedirects(false);
+            
             if(body != null) {
                     connection.setDoOutput(true);
-                    OutputStreamWriter wr = new OutputStreamWriter(connection.getOutputStream());
+                    OutputStreamWriter wr = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8);
                     wr.write(body);
                     wr.flush();
             }
@@ -115,15 +167,36 @@ public class V2 {
 
             int response_code = connection.getResponseCode();
 
-            if(IDP_Response.is_block(response_code)) return new IDP_Block();
-            else if(IDP_Response.is_redirect(response_code)) return new IDP_Redirect(response_code, connection.getHeaderField("Location"));
-            else if(IDP_Response.is_impossible(response_code)) return new IDP_Impossible(response_code, new String(drain(connection.getInputStream())));
-            else if(IDP_Response.is_error(response_code)) return new IDP_Error(response_code, connection.getContent().toString());
+            // the bodies of blocks and redirects are not used, they are still consumed so that the connection can be reused
+            if(IDP_Response.is_block(response_code)){
+                    HTTPS_Utils.release(connection);
+                    return new IDP_Block();
+            }
+            else if(IDP_Response.is_redirect(response_code)){
+                    HTTPS_Utils.release(connection);
+                    return new IDP_Redirect(response_code, connection.getHeaderField("Location"));
+            }
+            else if(IDP_Response.is_impossible(response_code)) return new IDP_Impossible(response_code, error_message(connection));
+            else if(IDP_Response.is_error(response_code)) return new IDP_Error(response_code, error_message(connection));
             else {
-                    JsonReader reader = Json.createReader(connection.getInputStream());
-                    JsonObject jsso = reader.readObject();
-                    
-                    return new IDP_OK(response_code, jsso);
+                    try(InputStream is = connection.getInputStream(); JsonReader reader = Json.createReader(is)){
+                            return new IDP_OK(response_code, reader.readObject());
+                    }
+            }
+    }
+    
+    /**
+     * 4xx and 5xx bodies are only available on the error stream, getInputStream throws for them
+     */
+    private static String error_message(HttpsURLConnection connection) throws IOException{
+            InputStream is = connection.getErrorStream();
+            if(is == null) return "";
+            
+            try{
+                    return new String(drain(is), StandardCharsets.UTF_8);
+            }
+            finally{
+                    is.close();
             }
     }
     